@@ -0,0 +1,36 @@
+package com.willowtreeapps.trafficcop.benchmark;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * The least a TrafficCop needs from a context when it's given a provider and a store, so it can be
+ * created outside of Android. The files dir is a temporary directory, for the default time series.
+ */
+class BenchmarkContext extends ContextWrapper {
+    private final File filesDir;
+
+    BenchmarkContext() {
+        super(null);
+        try {
+            filesDir = Files.createTempDirectory("trafficcop-benchmark").toFile();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create a files dir", e);
+        }
+        filesDir.deleteOnExit();
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir;
+    }
+}
@@ -0,0 +1,25 @@
+package com.willowtreeapps.trafficcop.benchmark;
+
+import com.willowtreeapps.trafficcop.DataUsage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import static com.willowtreeapps.trafficcop.SizeUnit.MEGABYTES;
+import static com.willowtreeapps.trafficcop.TimeUnit.SECONDS;
+
+@State(Scope.Thread)
+public class DataUsageBenchmark {
+    private final DataUsage usage = DataUsage.download(12, MEGABYTES).in(90, SECONDS);
+
+    @Benchmark
+    public String warningMessage() {
+        return usage.getWarningMessage();
+    }
+
+    @Benchmark
+    public String humanReadableSize() {
+        return usage.getHumanReadableSize();
+    }
+}
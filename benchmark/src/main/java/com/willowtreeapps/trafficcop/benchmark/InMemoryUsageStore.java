@@ -0,0 +1,46 @@
+package com.willowtreeapps.trafficcop.benchmark;
+
+import com.willowtreeapps.trafficcop.UsageStore;
+
+/**
+ * Keeps the state in memory, so benchmarks measure the evaluation and not the disk.
+ */
+class InMemoryUsageStore implements UsageStore {
+    private long[] saved;
+
+    @Override
+    public boolean load(long[] state) {
+        if (saved == null || saved.length != state.length) {
+            return false;
+        }
+        System.arraycopy(saved, 0, state, 0, state.length);
+        return true;
+    }
+
+    @Override
+    public void save(long[] state) {
+        if (saved == null || saved.length != state.length) {
+            saved = new long[state.length];
+        }
+        System.arraycopy(state, 0, saved, 0, state.length);
+    }
+
+    @Override
+    public void clear() {
+        saved = null;
+    }
+
+    @Override
+    public boolean isShared() {
+        return false;
+    }
+
+    @Override
+    public void merge(long[] state, Merger merger) {
+        long[] current = new long[state.length];
+        load(current);
+        merger.merge(current, state);
+        save(current);
+        System.arraycopy(current, 0, state, 0, state.length);
+    }
+}
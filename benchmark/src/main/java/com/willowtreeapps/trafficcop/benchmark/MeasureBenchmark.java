@@ -0,0 +1,80 @@
+package com.willowtreeapps.trafficcop.benchmark;
+
+import com.willowtreeapps.trafficcop.DataUsage;
+import com.willowtreeapps.trafficcop.DataUsageAlertListener;
+import com.willowtreeapps.trafficcop.Threshold;
+import com.willowtreeapps.trafficcop.TrafficCop;
+import com.willowtreeapps.trafficcop.test.helpers.ImmediateExecutor;
+import com.willowtreeapps.trafficcop.test.helpers.TestDataUsageStatsProvider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import static com.willowtreeapps.trafficcop.SizeUnit.BYTE;
+import static com.willowtreeapps.trafficcop.SizeUnit.KILOBYTES;
+import static com.willowtreeapps.trafficcop.SizeUnit.MEGABYTES;
+import static com.willowtreeapps.trafficcop.TimeUnit.HOUR;
+import static com.willowtreeapps.trafficcop.TimeUnit.MINUTE;
+import static com.willowtreeapps.trafficcop.TimeUnit.SECOND;
+import static com.willowtreeapps.trafficcop.TimeUnit.SECONDS;
+import static com.willowtreeapps.trafficcop.TimeUnit.WEEK;
+
+/**
+ * A full start and stop measuring cycle, evaluated on the calling thread.
+ */
+@State(Scope.Thread)
+public class MeasureBenchmark {
+    /**
+     * The number of listeners alerted. With 0 no threshold is reached, otherwise every cycle
+     * reaches one and alerts all of them.
+     */
+    @Param({"0", "1", "8"})
+    public int listeners;
+
+    private TestDataUsageStatsProvider provider;
+    private TrafficCop trafficCop;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        provider = new TestDataUsageStatsProvider();
+        TrafficCop.Builder builder = new TrafficCop.Builder()
+                .downloadWarningThreshold(Threshold.of(10, MEGABYTES).per(MINUTE))
+                .uploadWarningThreshold(Threshold.rolling(1, MEGABYTES).per(HOUR))
+                .dataUsageStatsProvider(provider)
+                .usageStore(new InMemoryUsageStore())
+                // Save on every stop rather than from the flush timer thread, so every cycle does
+                // the same work.
+                .flushInterval(0, SECONDS)
+                .executor(new ImmediateExecutor());
+        if (listeners > 0) {
+            builder.warningThresholds(DataUsage.Type.TOTAL, Threshold.of(1, BYTE).per(WEEK));
+        }
+        for (int i = 0; i < listeners; i++) {
+            builder.alert(new DataUsageAlertListener() {
+                @Override
+                public void alertThreshold(Threshold threshold, DataUsage dataUsage) {
+                    blackhole.consume(dataUsage);
+                }
+            });
+        }
+        trafficCop = builder.create("benchmark", new BenchmarkContext());
+    }
+
+    @TearDown
+    public void tearDown() {
+        trafficCop.destroy();
+    }
+
+    @Benchmark
+    public void startStopMeasuring() {
+        trafficCop.startMeasuring();
+        provider.incrementTime(1, SECOND);
+        provider.incrementReceived(10, KILOBYTES);
+        trafficCop.stopMeasuring();
+    }
+}
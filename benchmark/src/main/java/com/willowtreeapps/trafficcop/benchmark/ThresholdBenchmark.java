@@ -0,0 +1,30 @@
+package com.willowtreeapps.trafficcop.benchmark;
+
+import com.willowtreeapps.trafficcop.DataUsage;
+import com.willowtreeapps.trafficcop.Threshold;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import static com.willowtreeapps.trafficcop.SizeUnit.KILOBYTES;
+import static com.willowtreeapps.trafficcop.SizeUnit.MEGABYTES;
+import static com.willowtreeapps.trafficcop.TimeUnit.MINUTE;
+import static com.willowtreeapps.trafficcop.TimeUnit.SECONDS;
+
+@State(Scope.Thread)
+public class ThresholdBenchmark {
+    private final Threshold threshold = Threshold.of(10, MEGABYTES).per(MINUTE);
+    private final DataUsage under = DataUsage.download(500, KILOBYTES).in(30, SECONDS);
+    private final DataUsage over = DataUsage.download(20, MEGABYTES).in(90, SECONDS);
+
+    @Benchmark
+    public boolean hasReachedUnder() {
+        return threshold.hasReached(under);
+    }
+
+    @Benchmark
+    public boolean hasReachedOver() {
+        return threshold.hasReached(over);
+    }
+}
@@ -0,0 +1,199 @@
+package com.willowtreeapps.trafficcop;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * <p>
+ * A {@link DataUsageStatsProvider} that counts the bytes going through the streams and channels
+ * you wrap with it, instead of asking the system. Reading it is cheap and it only sees the traffic
+ * you wrap, so for example you can measure just your API client.</p>
+ * <pre>{@code
+ * CountingDataUsageStatsProvider provider = new CountingDataUsageStatsProvider();
+ * InputStream in = provider.wrap(connection.getInputStream());
+ * OutputStream out = provider.wrap(connection.getOutputStream());
+ * }</pre>
+ * <p>
+ * The counts are striped across threads so many network threads can count at once without
+ * contending on a single counter.</p>
+ */
+public class CountingDataUsageStatsProvider implements SnapshotDataUsageStatsProvider {
+    private final StripedCounter bytesReceived = new StripedCounter();
+    private final StripedCounter bytesTransmitted = new StripedCounter();
+
+    @Override
+    public long getNanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public long getBytesTransmitted() {
+        return bytesTransmitted.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public void readSnapshot(UsageSnapshot reuse) {
+        reuse.set(System.nanoTime(), bytesReceived.sum(), bytesTransmitted.sum());
+    }
+
+    /**
+     * Counts bytes received some other way.
+     *
+     * @param bytes the number of bytes
+     */
+    public void addReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    /**
+     * Counts bytes transmitted some other way.
+     *
+     * @param bytes the number of bytes
+     */
+    public void addTransmitted(long bytes) {
+        bytesTransmitted.add(bytes);
+    }
+
+    /**
+     * Wraps a stream so that the bytes read from it are counted as received. Mark and reset aren't
+     * supported, since bytes read again would be counted twice.
+     *
+     * @param in the stream
+     * @return the counting stream
+     */
+    public InputStream wrap(InputStream in) {
+        if (in == null) {
+            throw new IllegalArgumentException("in cannot be null");
+        }
+        return new CountingInputStream(in);
+    }
+
+    /**
+     * Wraps a stream so that the bytes written to it are counted as transmitted.
+     *
+     * @param out the stream
+     * @return the counting stream
+     */
+    public OutputStream wrap(OutputStream out) {
+        if (out == null) {
+            throw new IllegalArgumentException("out cannot be null");
+        }
+        return new CountingOutputStream(out);
+    }
+
+    /**
+     * Wraps a channel so that the bytes read from it are counted as received.
+     *
+     * @param channel the channel
+     * @return the counting channel
+     */
+    public ReadableByteChannel wrap(ReadableByteChannel channel) {
+        if (channel == null) {
+            throw new IllegalArgumentException("channel cannot be null");
+        }
+        return new CountingReadableByteChannel(channel);
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                bytesReceived.add(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = in.read(buffer, offset, count);
+            if (read > 0) {
+                bytesReceived.add(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(count);
+            if (skipped > 0) {
+                bytesReceived.add(skipped);
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readLimit) {
+        }
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+    }
+
+    private class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytesTransmitted.add(1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            // FilterOutputStream would write one byte at a time.
+            out.write(buffer, offset, count);
+            bytesTransmitted.add(count);
+        }
+    }
+
+    private class CountingReadableByteChannel implements ReadableByteChannel {
+        private final ReadableByteChannel channel;
+
+        CountingReadableByteChannel(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int read = channel.read(dst);
+            if (read > 0) {
+                bytesReceived.add(read);
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -5,7 +5,8 @@ package com.willowtreeapps.trafficcop;
  */
 public class DataUsage {
     /**
-     * The type of data usage, can be {@link Type#DOWNLOAD} or {@link Type#UPLOAD}.
+     * The type of data usage, can be {@link Type#DOWNLOAD}, {@link Type#UPLOAD} or
+     * {@link Type#TOTAL}.
      */
     public final Type type;
 
@@ -15,14 +16,33 @@ public class DataUsage {
     public final long bytes;
 
     /**
-     * The number of seconds for the time period.
+     * The number of seconds for the time period, rounded down.
+     *
+     * @see #millis
      */
     public final int seconds;
 
-    DataUsage(Type type, long bytes, int seconds) {
+    /**
+     * The number of milliseconds for the time period.
+     */
+    public final long millis;
+
+    /**
+     * The {@link TrafficTag} the data usage is for, or {@link TrafficTag#NONE} for all of the
+     * app's data usage.
+     */
+    public final int tag;
+
+    DataUsage(Type type, long bytes, long millis) {
+        this(type, bytes, millis, TrafficTag.NONE);
+    }
+
+    DataUsage(Type type, long bytes, long millis, int tag) {
         this.type = type;
         this.bytes = bytes;
-        this.seconds = seconds;
+        this.millis = millis;
+        this.seconds = (int) Math.min(millis / 1000, Integer.MAX_VALUE);
+        this.tag = tag;
     }
 
     public static Builder download(int amount, SizeUnit unit) {
@@ -33,8 +53,16 @@ public class DataUsage {
         return new Builder(Type.UPLOAD, unit.of(amount));
     }
 
+    public static Builder total(int amount, SizeUnit unit) {
+        return new Builder(Type.TOTAL, unit.of(amount));
+    }
+
     public static enum Type {
-        DOWNLOAD, UPLOAD
+        DOWNLOAD, UPLOAD,
+        /**
+         * Downloads and uploads combined.
+         */
+        TOTAL
     }
 
     /**
@@ -43,7 +71,7 @@ public class DataUsage {
      * @return the warning message
      */
     public String getWarningMessage() {
-        return "Warning! You have used " + getHumanReadableSize() + " in " + getHumanReadableTimespan() + ".";
+        return DataUsageFormatter.appendWarningMessageMillis(new StringBuilder(48), bytes, millis).toString();
     }
 
     /**
@@ -52,34 +80,17 @@ public class DataUsage {
      * @return the human-readable size
      */
     public String getHumanReadableSize() {
-        if (bytes < 1000) {
-            return bytes + " bytes";
-        }
-        if (bytes < 1000 * 1000) {
-            return (bytes / 1000) + " kilobytes";
-        }
-        if (bytes < 1000 * 1000 * 1000) {
-            return (bytes / (1000 * 1000)) + " megabytes";
-        }
-        return (bytes / (1000 * 1000 * 1000)) + " gigabytes";
+        return DataUsageFormatter.appendSize(new StringBuilder(16), bytes).toString();
     }
 
     /**
-     * Returns the timespan in human-readable units, for example "12 seconds" or "2 days".
+     * Returns the timespan in human-readable units, for example "250 milliseconds", "12 seconds"
+     * or "2 days".
      *
      * @return the human-readable timespan
      */
     public String getHumanReadableTimespan() {
-        if (seconds < 60) {
-            return seconds + " seconds";
-        }
-        if (seconds < 60 * 60) {
-            return (seconds / 60) + " minutes";
-        }
-        if (seconds < 60 * 60 * 24) {
-            return (seconds / (60 * 60)) + " hours";
-        }
-        return (seconds / (60 * 60 * 24)) + " days";
+        return DataUsageFormatter.appendTimespanMillis(new StringBuilder(16), millis).toString();
     }
 
     @Override
@@ -89,35 +100,48 @@ public class DataUsage {
 
         DataUsage usage = (DataUsage) o;
 
-        return bytes == usage.bytes && seconds == usage.seconds && type == usage.type;
+        return bytes == usage.bytes && millis == usage.millis && type == usage.type && tag == usage.tag;
     }
 
     @Override
     public int hashCode() {
         int result = type.hashCode();
         result = 31 * result + (int) (bytes ^ (bytes >>> 32));
-        result = 31 * result + seconds;
+        result = 31 * result + (int) (millis ^ (millis >>> 32));
+        result = 31 * result + tag;
         return result;
     }
 
     @Override
     public String toString() {
-        return type + " " + getHumanReadableSize() + " in " + getHumanReadableTimespan();
+        StringBuilder result = new StringBuilder(48).append(type).append(' ');
+        DataUsageFormatter.appendSize(result, bytes).append(" in ");
+        DataUsageFormatter.appendTimespanMillis(result, millis);
+        if (tag != TrafficTag.NONE) {
+            result.append(" for tag ").append(tag);
+        }
+        return result.toString();
     }
 
     public static class Builder {
         private Type type;
         private long bytes;
-        private int seconds;
+        private long millis;
+        private int tag = TrafficTag.NONE;
 
         private Builder(Type type, long bytes) {
             this.type = type;
             this.bytes = bytes;
         }
 
+        public Builder forTag(int tag) {
+            this.tag = tag;
+            return this;
+        }
+
         public DataUsage in(int amount, TimeUnit unit) {
-            seconds = unit.of(amount);
-            return new DataUsage(type, bytes, seconds);
+            millis = unit.toMillis(amount);
+            return new DataUsage(type, bytes, millis, tag);
         }
     }
 }
@@ -0,0 +1,99 @@
+package com.willowtreeapps.trafficcop;
+
+/**
+ * Formats data usage into a {@link StringBuilder} you provide, so an alert can be described
+ * without creating intermediate strings. Reuse the builder with {@code setLength(0)}.
+ *
+ * @see DataUsage#getWarningMessage()
+ */
+public final class DataUsageFormatter {
+    private DataUsageFormatter() {
+    }
+
+    /**
+     * Appends a warning message, for example "Warning! You have used 10 kilobytes in 12 seconds."
+     * or "Warning! You have used 2 megabytes in 250 milliseconds."
+     *
+     * @param out    the builder to append to
+     * @param bytes  the number of bytes used
+     * @param millis the number of milliseconds they were used in
+     * @return the builder for chaining
+     */
+    public static StringBuilder appendWarningMessageMillis(StringBuilder out, long bytes, long millis) {
+        out.append("Warning! You have used ");
+        appendSize(out, bytes);
+        out.append(" in ");
+        appendTimespanMillis(out, millis);
+        return out.append('.');
+    }
+
+    /**
+     * Appends a warning message like {@link #appendWarningMessageMillis(StringBuilder, long, long)}
+     * for usage measured in whole seconds.
+     *
+     * @param out     the builder to append to
+     * @param bytes   the number of bytes used
+     * @param seconds the number of seconds they were used in
+     * @return the builder for chaining
+     */
+    public static StringBuilder appendWarningMessage(StringBuilder out, long bytes, int seconds) {
+        return appendWarningMessageMillis(out, bytes, seconds * 1000L);
+    }
+
+    /**
+     * Appends the size in human-readable units, for example "10 kilobytes" or "12 gigabytes".
+     *
+     * @param out   the builder to append to
+     * @param bytes the number of bytes
+     * @return the builder for chaining
+     */
+    public static StringBuilder appendSize(StringBuilder out, long bytes) {
+        if (bytes < 1000) {
+            return out.append(bytes).append(" bytes");
+        }
+        if (bytes < 1000 * 1000) {
+            return out.append(bytes / 1000).append(" kilobytes");
+        }
+        if (bytes < 1000 * 1000 * 1000) {
+            return out.append(bytes / (1000 * 1000)).append(" megabytes");
+        }
+        return out.append(bytes / (1000 * 1000 * 1000)).append(" gigabytes");
+    }
+
+    /**
+     * Appends the timespan in human-readable units, for example "250 milliseconds", "12 seconds"
+     * or "2 days". Milliseconds are only used for timespans under a second.
+     *
+     * @param out    the builder to append to
+     * @param millis the number of milliseconds
+     * @return the builder for chaining
+     */
+    public static StringBuilder appendTimespanMillis(StringBuilder out, long millis) {
+        if (millis > 0 && millis < 1000) {
+            return out.append(millis).append(" milliseconds");
+        }
+        long seconds = millis / 1000;
+        if (seconds < 60) {
+            return out.append(seconds).append(" seconds");
+        }
+        if (seconds < 60 * 60) {
+            return out.append(seconds / 60).append(" minutes");
+        }
+        if (seconds < 60 * 60 * 24) {
+            return out.append(seconds / (60 * 60)).append(" hours");
+        }
+        return out.append(seconds / (60 * 60 * 24)).append(" days");
+    }
+
+    /**
+     * Appends the timespan like {@link #appendTimespanMillis(StringBuilder, long)} for a timespan
+     * in whole seconds.
+     *
+     * @param out     the builder to append to
+     * @param seconds the number of seconds
+     * @return the builder for chaining
+     */
+    public static StringBuilder appendTimespan(StringBuilder out, int seconds) {
+        return appendTimespanMillis(out, seconds * 1000L);
+    }
+}
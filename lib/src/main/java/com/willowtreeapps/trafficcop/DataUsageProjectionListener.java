@@ -0,0 +1,21 @@
+package com.willowtreeapps.trafficcop;
+
+/**
+ * A listener that will be called when data usage is projected to reach a threshold soon, so you
+ * can cut back before it does, for example by lowering image quality or pausing prefetching.
+ *
+ * @see TrafficCop.Builder#earlyAlert(int, TimeUnit, DataUsageProjectionListener...)
+ */
+public interface DataUsageProjectionListener {
+    /**
+     * Called once when the current rate of data usage would reach the threshold within the lead
+     * time. It is called again only after the projection moves out of the lead time or the
+     * threshold is reached.
+     *
+     * @param threshold           the threshold that will be reached
+     * @param type                the type of data usage
+     * @param secondsUntilReached the projected number of seconds until it is reached
+     * @param bytesPerSecond      the estimated current rate of data usage
+     */
+    void thresholdApproaching(Threshold threshold, DataUsage.Type type, int secondsUntilReached, long bytesPerSecond);
+}
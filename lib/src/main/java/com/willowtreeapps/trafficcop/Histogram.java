@@ -0,0 +1,161 @@
+package com.willowtreeapps.trafficcop;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A histogram of non-negative values in a fixed amount of memory. Values up to 15 are counted
+ * exactly, larger ones in buckets of 8 per power of two, so any value is known to within 12.5%,
+ * the same idea as HdrHistogram.</p>
+ * <p>
+ * Recording is a couple of atomic adds and can happen on any thread. A {@link Snapshot} can be
+ * taken from another thread at any time without stopping recording; values recorded while it is
+ * taken may or may not be in it.</p>
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below this each get their own bucket.
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+    static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value, negative values are recorded as 0.
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        total.addAndGet(value);
+        for (; ; ) {
+            long current = max.get();
+            if (value <= current || max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot of the values recorded so far.
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        long[] snapshotCounts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshotCounts[i] = counts.get(i);
+            count += snapshotCounts[i];
+        }
+        return new Snapshot(snapshotCounts, count, total.get(), max.get());
+    }
+
+    static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the highest value that falls into the bucket.
+     */
+    static long highestValue(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) - 1);
+    }
+
+    /**
+     * The values of a {@link Histogram} at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long total, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        /**
+         * Returns the number of values recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the sum of the values recorded.
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Returns the largest value recorded, or 0 if none were.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the mean of the values recorded, or 0 if none were.
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * Returns the value that the given percentage of the values recorded are at or below,
+         * rounded up to the top of its bucket.
+         *
+         * @param percentile the percentile, from 0 to 100
+         * @return the value, or 0 if none were recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count
+                    + ", mean=" + (long) getMean()
+                    + ", p50=" + getValueAtPercentile(50)
+                    + ", p90=" + getValueAtPercentile(90)
+                    + ", p99=" + getValueAtPercentile(99)
+                    + ", max=" + max;
+        }
+    }
+}
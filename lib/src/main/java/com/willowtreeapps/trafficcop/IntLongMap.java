@@ -0,0 +1,189 @@
+package com.willowtreeapps.trafficcop;
+
+import java.util.Arrays;
+
+/**
+ * A map of int keys to long values using open addressing over primitive arrays, so neither keys
+ * nor values are boxed. Entries are iterated by slot:
+ * <pre>{@code
+ * for (int slot = 0; slot < map.slots(); slot++) {
+ *     if (map.isOccupied(slot)) {
+ *         int key = map.keyAt(slot);
+ *         long value = map.valueAt(slot);
+ *     }
+ * }
+ * }</pre>
+ */
+public final class IntLongMap {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] keys;
+    private long[] values;
+    private boolean[] occupied;
+    private int size;
+
+    /**
+     * Constructs an empty map.
+     */
+    public IntLongMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs an empty map that can hold the given number of entries before it grows.
+     *
+     * @param capacity the expected number of entries
+     */
+    public IntLongMap(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) * 2;
+        keys = new int[slots];
+        values = new long[slots];
+        occupied = new boolean[slots];
+    }
+
+    /**
+     * Returns the value for the given key.
+     *
+     * @param key the key
+     * @return the value, or 0 if the map doesn't contain the key
+     */
+    public long get(int key) {
+        int slot = find(key);
+        return occupied[slot] ? values[slot] : 0;
+    }
+
+    /**
+     * Returns if the map contains the given key.
+     *
+     * @param key the key
+     * @return true if the map contains the key, false otherwise
+     */
+    public boolean containsKey(int key) {
+        return occupied[find(key)];
+    }
+
+    /**
+     * Sets the value for the given key.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public void put(int key, long value) {
+        int slot = insert(key);
+        values[slot] = value;
+    }
+
+    /**
+     * Adds to the value for the given key, treating a missing key as 0.
+     *
+     * @param key   the key
+     * @param delta the amount to add
+     */
+    public void add(int key, long delta) {
+        int slot = insert(key);
+        values[slot] += delta;
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries, keeping the allocated capacity.
+     */
+    public void clear() {
+        Arrays.fill(occupied, false);
+        size = 0;
+    }
+
+    /**
+     * Returns the number of slots, for iterating with {@link #isOccupied(int)}.
+     *
+     * @return the number of slots
+     */
+    public int slots() {
+        return keys.length;
+    }
+
+    /**
+     * Returns if the slot holds an entry.
+     *
+     * @param slot the slot
+     * @return true if the slot holds an entry, false otherwise
+     */
+    public boolean isOccupied(int slot) {
+        return occupied[slot];
+    }
+
+    /**
+     * Returns the key of the entry in the slot.
+     *
+     * @param slot an occupied slot
+     * @return the key
+     */
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Returns the value of the entry in the slot.
+     *
+     * @param slot an occupied slot
+     * @return the value
+     */
+    public long valueAt(int slot) {
+        return values[slot];
+    }
+
+    private int insert(int key) {
+        int slot = find(key);
+        if (occupied[slot]) {
+            return slot;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+            slot = find(key);
+        }
+        keys[slot] = key;
+        values[slot] = 0;
+        occupied[slot] = true;
+        size++;
+        return slot;
+    }
+
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (occupied[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldOccupied = occupied;
+        keys = new int[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        occupied = new boolean[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldOccupied[i]) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                occupied[slot] = true;
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,254 @@
+package com.willowtreeapps.trafficcop;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * A {@link UsageStore} that appends each save as a fixed-width binary record to a memory-mapped
+ * file, so a save only writes a few bytes instead of rewriting the whole file.</p>
+ * <p>
+ * Each record is the time it was saved, the state and a checksum. On load the records are read in
+ * order and the last one with a valid checksum wins, so a record torn by a crash is ignored. When
+ * the file is full it is compacted down to its latest record by writing a new file and renaming it
+ * over the old one.</p>
+ * <p>
+ * Records are left for the OS to write back, so they survive the app crashing or being killed but
+ * not the device losing power. If the file can't be read or written the error is logged and the
+ * store acts as if nothing was saved, so a full disk or a corrupt file never stops usage from
+ * being measured.</p>
+ */
+public class JournalUsageStore implements UsageStore {
+    private static final String TAG = "JournalUsageStore";
+    private static final int MAGIC = 0x54434a31; // "TCJ1"
+    private static final int HEADER_SIZE = 16; // magic, state length, reserved
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private final File file;
+    private final int capacity;
+    private final CRC32 crc = new CRC32();
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private int stateLength = -1;
+    private int recordCount;
+
+    /**
+     * Constructs a new store that keeps its journal in the given file.
+     *
+     * @param file the journal file
+     */
+    public JournalUsageStore(File file) {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a new store that keeps its journal in the given file, compacting it after the
+     * given number of saves.
+     *
+     * @param file     the journal file
+     * @param capacity the number of records the file holds before it is compacted
+     */
+    public JournalUsageStore(File file, int capacity) {
+        if (file == null) {
+            throw new IllegalArgumentException("file cannot be null");
+        }
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean load(long[] state) {
+        try {
+            if (!file.exists()) {
+                return false;
+            }
+            open(state.length);
+            if (recordCount == 0) {
+                return false;
+            }
+            readRecord(recordCount - 1, state);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public void save(long[] state) {
+        try {
+            if (buffer == null || stateLength != state.length) {
+                open(state.length);
+            }
+            if (recordCount == capacity) {
+                compact();
+            }
+            writeRecord(buffer, recordCount, state);
+            recordCount++;
+        } catch (IOException e) {
+            // Opened again on the next save, starting over if the file is unreadable.
+            Log.w(TAG, "Unable to write " + file, e);
+            close();
+        }
+    }
+
+    @Override
+    public void clear() {
+        close();
+        file.delete();
+        tempFile().delete();
+    }
+
+    @Override
+    public boolean isShared() {
+        return false;
+    }
+
+    @Override
+    public void merge(long[] state, Merger merger) {
+        long[] saved = new long[state.length];
+        if (!load(saved)) {
+            Arrays.fill(saved, 0);
+        }
+        merger.merge(saved, state);
+        save(saved);
+        System.arraycopy(saved, 0, state, 0, state.length);
+    }
+
+    /**
+     * Opens the journal for state of the given length, starting a new one if the existing file was
+     * written for a different length.
+     */
+    private void open(int length) throws IOException {
+        close();
+        // A leftover temp file means we died while compacting, before the rename.
+        tempFile().delete();
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        buffer = map(randomAccessFile, length);
+        stateLength = length;
+        recordCount = 0;
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != length) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, length);
+            return;
+        }
+
+        long[] scratch = new long[length];
+        while (recordCount < capacity && readRecord(recordCount, scratch)) {
+            recordCount++;
+        }
+    }
+
+    /**
+     * Rewrites the journal with only its latest record.
+     */
+    private void compact() throws IOException {
+        long[] latest = new long[stateLength];
+        readRecord(recordCount - 1, latest);
+
+        File temp = tempFile();
+        RandomAccessFile tempRandomAccessFile = new RandomAccessFile(temp, "rw");
+        try {
+            MappedByteBuffer tempBuffer = map(tempRandomAccessFile, stateLength);
+            tempBuffer.putInt(0, MAGIC);
+            tempBuffer.putInt(4, stateLength);
+            writeRecord(tempBuffer, 0, latest);
+            tempBuffer.force();
+        } finally {
+            tempRandomAccessFile.close();
+        }
+
+        close();
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        buffer = map(randomAccessFile, latest.length);
+        stateLength = latest.length;
+        recordCount = 1;
+    }
+
+    private MappedByteBuffer map(RandomAccessFile randomAccessFile, int length) throws IOException {
+        long size = HEADER_SIZE + (long) capacity * recordSize(length);
+        return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private boolean readRecord(int index, long[] state) {
+        int position = recordPosition(index);
+        long timestamp = buffer.getLong(position);
+        crc.reset();
+        update(timestamp);
+        for (int i = 0; i < state.length; i++) {
+            state[i] = buffer.getLong(position + 8 + i * 8);
+            update(state[i]);
+        }
+        return buffer.getLong(position + 8 + state.length * 8) == checksum();
+    }
+
+    private void writeRecord(MappedByteBuffer buffer, int index, long[] state) {
+        int position = recordPosition(index);
+        long timestamp = System.currentTimeMillis();
+        crc.reset();
+        update(timestamp);
+        buffer.putLong(position, timestamp);
+        for (int i = 0; i < state.length; i++) {
+            buffer.putLong(position + 8 + i * 8, state[i]);
+            update(state[i]);
+        }
+        // The checksum goes last so a record torn part way through never looks valid.
+        buffer.putLong(position + 8 + state.length * 8, checksum());
+    }
+
+    /**
+     * Returns the checksum with a marker bit set, so that a zeroed slot never passes as a record.
+     */
+    private long checksum() {
+        return crc.getValue() | (1L << 32);
+    }
+
+    private void update(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (value >>> shift));
+        }
+    }
+
+    private int recordPosition(int index) {
+        return HEADER_SIZE + index * recordSize(stateLength);
+    }
+
+    private static int recordSize(int stateLength) {
+        // timestamp + state + checksum
+        return 8 + stateLength * 8 + 8;
+    }
+
+    private File tempFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private void close() {
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // Nothing left to lose, all writes went through the mapping.
+            }
+            randomAccessFile = null;
+        }
+        buffer = null;
+        stateLength = -1;
+        recordCount = 0;
+    }
+}
@@ -0,0 +1,146 @@
+package com.willowtreeapps.trafficcop;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * What a {@link TrafficCop} has measured and what measuring has cost, for your own telemetry.
+ * Every histogram and counter can be read from any thread while the TrafficCop keeps recording.</p>
+ * <p>
+ * A measurement runs from starting to stopping measuring, or from one sample to the next when
+ * sampling is enabled.</p>
+ *
+ * @see TrafficCop#getMetrics()
+ */
+public final class Metrics {
+    private final Histogram bytesReceived = new Histogram();
+    private final Histogram bytesTransmitted = new Histogram();
+    private final Histogram receiveRate = new Histogram();
+    private final Histogram transmitRate = new Histogram();
+    private final Histogram stopMeasuringNanos = new Histogram();
+    private final Histogram persistNanos = new Histogram();
+    private final List<Threshold> thresholds;
+    private final AtomicLongArray alertCounts;
+    // The index in thresholds of each threshold in the set, which may hold one more than once.
+    private final int[] alertIndexes;
+
+    Metrics(ThresholdSet thresholdSet) {
+        List<Threshold> thresholds = new ArrayList<Threshold>();
+        alertIndexes = new int[thresholdSet.size()];
+        for (int i = 0; i < thresholdSet.size(); i++) {
+            int index = indexOf(thresholds, thresholdSet.threshold(i));
+            if (index < 0) {
+                index = thresholds.size();
+                thresholds.add(thresholdSet.threshold(i));
+            }
+            alertIndexes[i] = index;
+        }
+        this.thresholds = Collections.unmodifiableList(thresholds);
+        this.alertCounts = new AtomicLongArray(thresholds.size());
+    }
+
+    /**
+     * Returns the bytes received in each measurement.
+     */
+    public Histogram getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Returns the bytes transmitted in each measurement.
+     */
+    public Histogram getBytesTransmitted() {
+        return bytesTransmitted;
+    }
+
+    /**
+     * Returns the average bytes per second received in each measurement.
+     */
+    public Histogram getReceiveRate() {
+        return receiveRate;
+    }
+
+    /**
+     * Returns the average bytes per second transmitted in each measurement.
+     */
+    public Histogram getTransmitRate() {
+        return transmitRate;
+    }
+
+    /**
+     * Returns the nanoseconds each call to {@link TrafficCop#stopMeasuring()} or
+     * {@link TrafficCop.Session#close()} took.
+     */
+    public Histogram getStopMeasuringNanos() {
+        return stopMeasuringNanos;
+    }
+
+    /**
+     * Returns the nanoseconds each save to the {@link UsageStore} took.
+     */
+    public Histogram getPersistNanos() {
+        return persistNanos;
+    }
+
+    /**
+     * Returns the thresholds the TrafficCop checks, each once.
+     */
+    public List<Threshold> getThresholds() {
+        return thresholds;
+    }
+
+    /**
+     * Returns the number of times the threshold has been reached since the TrafficCop was
+     * created, for every type it was added for.
+     *
+     * @param threshold one of {@link #getThresholds()}
+     * @return the number of alerts
+     */
+    public long getAlertCount(Threshold threshold) {
+        int index = indexOf(thresholds, threshold);
+        if (index < 0) {
+            throw new IllegalArgumentException("threshold is not checked by this TrafficCop");
+        }
+        return alertCounts.get(index);
+    }
+
+    void recordMeasurement(long elapsedNanos, long received, long transmitted) {
+        bytesReceived.record(received);
+        bytesTransmitted.record(transmitted);
+        if (elapsedNanos > 0) {
+            double seconds = elapsedNanos / 1e9;
+            receiveRate.record((long) (received / seconds));
+            transmitRate.record((long) (transmitted / seconds));
+        }
+    }
+
+    void recordStopMeasuring(long nanos) {
+        stopMeasuringNanos.record(nanos);
+    }
+
+    void recordPersist(long nanos) {
+        persistNanos.record(nanos);
+    }
+
+    /**
+     * Counts an alert for the threshold at the given index in the {@link ThresholdSet}.
+     */
+    void recordAlert(int index) {
+        alertCounts.incrementAndGet(alertIndexes[index]);
+    }
+
+    /**
+     * Finds the threshold by identity, there are only ever a few.
+     */
+    private static int indexOf(List<Threshold> thresholds, Threshold threshold) {
+        for (int i = 0; i < thresholds.size(); i++) {
+            if (thresholds.get(i) == threshold) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,350 @@
+package com.willowtreeapps.trafficcop;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A {@link DataUsageStatsProvider} that reads the per-interface counters in
+ * {@code /proc/self/net/dev}, so thresholds can be limited to some interfaces, for example only
+ * cellular ones with {@link #CELLULAR_INTERFACES}. Unlike the default provider this counts the
+ * traffic of every app sharing the network namespace, which on Android is the whole device.</p>
+ * <p>
+ * The file is read into a reused direct buffer and parsed byte by byte, so reading doesn't
+ * allocate once every interface has been seen. An interface's counters reset when it goes down,
+ * the totals here only ever grow so that a reconnect doesn't look like negative usage.</p>
+ * <p>
+ * The per-interface counters are as of the last read. Call {@link #close()} to release the file
+ * when you are done with the provider.</p>
+ */
+public class NetDevDataUsageStatsProvider implements SnapshotDataUsageStatsProvider, Closeable {
+    /**
+     * Name prefixes of the interfaces used for cellular data on most devices.
+     */
+    public static final String[] CELLULAR_INTERFACES = {"rmnet", "ccmni", "pdp", "ppp", "wwan", "v4-rmnet"};
+
+    private static final File STATS_FILE = new File("/proc/self/net/dev");
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final byte[] LOOPBACK = {'l', 'o'};
+    // Of the counters after the interface name, the receive bytes are the first and the transmit
+    // bytes the ninth.
+    private static final int FIELD_RX_BYTES = 0;
+    private static final int FIELD_TX_BYTES = 8;
+
+    private final File statsFile;
+    private final byte[][] prefixes;
+    private RandomAccessFile randomAccessFile;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+
+    private int interfaceCount;
+    private byte[][] names = new byte[8][];
+    private String[] nameStrings = new String[8];
+    private boolean[] included = new boolean[8];
+    private long[] lastReceived = new long[8];
+    private long[] lastTransmitted = new long[8];
+    private long[] totalReceived = new long[8];
+    private long[] totalTransmitted = new long[8];
+
+    /**
+     * Constructs a new provider that counts the interfaces whose names start with one of the
+     * given prefixes, or every interface but loopback if none are given.
+     *
+     * @param interfacePrefixes the prefixes of the interface names to count
+     */
+    public NetDevDataUsageStatsProvider(String... interfacePrefixes) {
+        this(STATS_FILE, interfacePrefixes);
+    }
+
+    /**
+     * Constructs a new provider that reads the counters from the given file.
+     *
+     * @param statsFile         the file in the format of {@code /proc/self/net/dev}
+     * @param interfacePrefixes the prefixes of the interface names to count
+     * @see #NetDevDataUsageStatsProvider(String...)
+     */
+    public NetDevDataUsageStatsProvider(File statsFile, String... interfacePrefixes) {
+        if (statsFile == null) {
+            throw new IllegalArgumentException("statsFile cannot be null");
+        }
+        if (interfacePrefixes == null) {
+            throw new IllegalArgumentException("interfacePrefixes cannot be null");
+        }
+        this.statsFile = statsFile;
+        this.prefixes = new byte[interfacePrefixes.length][];
+        for (int i = 0; i < interfacePrefixes.length; i++) {
+            if (interfacePrefixes[i] == null) {
+                throw new IllegalArgumentException("interfacePrefixes cannot contain null");
+            }
+            // Interface names are ASCII.
+            prefixes[i] = interfacePrefixes[i].getBytes();
+        }
+    }
+
+    @Override
+    public long getNanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public synchronized long getBytesTransmitted() {
+        read();
+        long bytes = 0;
+        for (int i = 0; i < interfaceCount; i++) {
+            if (included[i]) {
+                bytes += totalTransmitted[i];
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized long getBytesReceived() {
+        read();
+        long bytes = 0;
+        for (int i = 0; i < interfaceCount; i++) {
+            if (included[i]) {
+                bytes += totalReceived[i];
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized void readSnapshot(UsageSnapshot reuse) {
+        read();
+        long received = 0;
+        long transmitted = 0;
+        for (int i = 0; i < interfaceCount; i++) {
+            if (included[i]) {
+                received += totalReceived[i];
+                transmitted += totalTransmitted[i];
+            }
+        }
+        reuse.set(System.nanoTime(), received, transmitted);
+    }
+
+    /**
+     * Returns the number of interfaces seen so far, counted or not.
+     *
+     * @return the number of interfaces
+     */
+    public synchronized int getInterfaceCount() {
+        return interfaceCount;
+    }
+
+    /**
+     * Returns the name of an interface.
+     *
+     * @param index the index of the interface, less than {@link #getInterfaceCount()}
+     * @return the name
+     */
+    public synchronized String getInterfaceName(int index) {
+        checkIndex(index);
+        if (nameStrings[index] == null) {
+            nameStrings[index] = new String(names[index]);
+        }
+        return nameStrings[index];
+    }
+
+    /**
+     * Returns the bytes received on an interface as of the last read.
+     *
+     * @param index the index of the interface, less than {@link #getInterfaceCount()}
+     * @return the bytes received
+     */
+    public synchronized long getInterfaceBytesReceived(int index) {
+        checkIndex(index);
+        return totalReceived[index];
+    }
+
+    /**
+     * Returns the bytes transmitted on an interface as of the last read.
+     *
+     * @param index the index of the interface, less than {@link #getInterfaceCount()}
+     * @return the bytes transmitted
+     */
+    public synchronized long getInterfaceBytesTransmitted(int index) {
+        checkIndex(index);
+        return totalTransmitted[index];
+    }
+
+    /**
+     * Closes the stats file. It is opened again on the next read.
+     */
+    @Override
+    public synchronized void close() {
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+            randomAccessFile = null;
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= interfaceCount) {
+            throw new IndexOutOfBoundsException("index: " + index + ", interfaces: " + interfaceCount);
+        }
+    }
+
+    private void read() {
+        try {
+            if (randomAccessFile == null) {
+                randomAccessFile = new RandomAccessFile(statsFile, "r");
+            }
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer.clear();
+            // Files in /proc don't have a size, read until the end and grow the buffer if needed.
+            while (channel.read(buffer, buffer.position()) >= 0) {
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+            }
+            parse(buffer, buffer.position());
+        } catch (IOException e) {
+            // The counters aren't available, keep reporting the last totals.
+            close();
+        }
+    }
+
+    /**
+     * Parses the lines after the two header lines, each an interface name followed by a colon
+     * and whitespace separated counters.
+     */
+    private void parse(ByteBuffer buffer, int limit) {
+        int position = skipLine(buffer, skipLine(buffer, 0, limit), limit);
+        while (position < limit) {
+            position = skipSpaces(buffer, position, limit);
+            int nameStart = position;
+            while (position < limit && buffer.get(position) != ':' && buffer.get(position) != '\n') {
+                position++;
+            }
+            if (position >= limit || buffer.get(position) != ':') {
+                position = skipLine(buffer, position, limit);
+                continue;
+            }
+            int index = indexOf(buffer, nameStart, position);
+            position++;
+
+            long received = -1;
+            long transmitted = -1;
+            for (int field = 0; field <= FIELD_TX_BYTES; field++) {
+                position = skipSpaces(buffer, position, limit);
+                long value = 0;
+                boolean hasDigits = false;
+                while (position < limit) {
+                    byte b = buffer.get(position);
+                    if (b < '0' || b > '9') {
+                        break;
+                    }
+                    value = value * 10 + (b - '0');
+                    hasDigits = true;
+                    position++;
+                }
+                if (!hasDigits) {
+                    break;
+                }
+                if (field == FIELD_RX_BYTES) {
+                    received = value;
+                } else if (field == FIELD_TX_BYTES) {
+                    transmitted = value;
+                }
+            }
+            if (received >= 0 && transmitted >= 0) {
+                update(index, received, transmitted);
+            }
+            position = skipLine(buffer, position, limit);
+        }
+    }
+
+    private void update(int index, long received, long transmitted) {
+        // A counter that went backwards was reset by the interface going down, everything it
+        // counted since is new.
+        totalReceived[index] += received >= lastReceived[index] ? received - lastReceived[index] : received;
+        totalTransmitted[index] += transmitted >= lastTransmitted[index] ? transmitted - lastTransmitted[index] : transmitted;
+        lastReceived[index] = received;
+        lastTransmitted[index] = transmitted;
+    }
+
+    /**
+     * Returns the index of the interface with the name between the given positions, adding it if
+     * it hasn't been seen before.
+     */
+    private int indexOf(ByteBuffer buffer, int start, int end) {
+        search:
+        for (int i = 0; i < interfaceCount; i++) {
+            byte[] name = names[i];
+            if (name.length != end - start) {
+                continue;
+            }
+            for (int b = 0; b < name.length; b++) {
+                if (name[b] != buffer.get(start + b)) {
+                    continue search;
+                }
+            }
+            return i;
+        }
+
+        if (interfaceCount == names.length) {
+            int size = interfaceCount * 2;
+            names = Arrays.copyOf(names, size);
+            nameStrings = Arrays.copyOf(nameStrings, size);
+            included = Arrays.copyOf(included, size);
+            lastReceived = Arrays.copyOf(lastReceived, size);
+            lastTransmitted = Arrays.copyOf(lastTransmitted, size);
+            totalReceived = Arrays.copyOf(totalReceived, size);
+            totalTransmitted = Arrays.copyOf(totalTransmitted, size);
+        }
+        byte[] name = new byte[end - start];
+        for (int b = 0; b < name.length; b++) {
+            name[b] = buffer.get(start + b);
+        }
+        int index = interfaceCount++;
+        names[index] = name;
+        included[index] = isIncluded(name);
+        return index;
+    }
+
+    private boolean isIncluded(byte[] name) {
+        if (prefixes.length == 0) {
+            return !Arrays.equals(name, LOOPBACK);
+        }
+        search:
+        for (byte[] prefix : prefixes) {
+            if (prefix.length > name.length) {
+                continue;
+            }
+            for (int b = 0; b < prefix.length; b++) {
+                if (prefix[b] != name[b]) {
+                    continue search;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static int skipSpaces(ByteBuffer buffer, int position, int limit) {
+        while (position < limit && buffer.get(position) == ' ') {
+            position++;
+        }
+        return position;
+    }
+
+    private static int skipLine(ByteBuffer buffer, int position, int limit) {
+        while (position < limit && buffer.get(position) != '\n') {
+            position++;
+        }
+        return position + 1;
+    }
+}
@@ -0,0 +1,142 @@
+package com.willowtreeapps.trafficcop;
+
+/**
+ * <p>
+ * The highest rate of data usage in any one second of a recent window, kept as a sliding-window
+ * maximum.</p>
+ * <p>
+ * Usage is added to one-second intervals, spread evenly over the time it was measured in. When an
+ * interval is finished it is pushed onto a monotonic deque: it first drops the intervals at the
+ * back that used no more than it did, since they can never be the maximum again while it is in the
+ * window, and intervals at the front drop out once they are older than the window. The deque is
+ * then ordered by time and by usage, highest first, so the peak of any window up to the one given
+ * at construction is the first interval in the deque that is still inside it. Each interval is
+ * pushed and dropped at most once, and the deque lives in fixed arrays, so nothing is allocated
+ * after construction.</p>
+ */
+final class PeakRate {
+    /**
+     * The length of an interval, rates are in bytes per interval.
+     */
+    static final long INTERVAL_MILLIS = 1000;
+
+    private final int capacity;
+    // The deque, a ring of the finished intervals and the bytes used in each.
+    private final long[] intervals;
+    private final long[] bytes;
+    private int head;
+    private int size;
+    private long currentInterval = Long.MIN_VALUE;
+    private long currentBytes;
+
+    /**
+     * Constructs a peak rate that can be queried for windows up to the given length.
+     *
+     * @param windowMillis the longest window that will be queried
+     */
+    PeakRate(long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive");
+        }
+        capacity = (int) ((windowMillis + INTERVAL_MILLIS - 1) / INTERVAL_MILLIS);
+        intervals = new long[capacity];
+        bytes = new long[capacity];
+    }
+
+    /**
+     * Returns the longest window that can be queried.
+     */
+    long windowMillis() {
+        return capacity * INTERVAL_MILLIS;
+    }
+
+    /**
+     * Records the bytes used in a measurement that ended at the given time. Measurements must not
+     * overlap, usage from before the current interval is added to the current interval instead.
+     *
+     * @param nowMillis     the time the measurement ended in milliseconds
+     * @param elapsedMillis the length of the measurement in milliseconds
+     * @param usedBytes     the bytes used during the measurement
+     */
+    synchronized void add(long nowMillis, long elapsedMillis, long usedBytes) {
+        if (usedBytes <= 0) {
+            return;
+        }
+        long lastInterval = SlidingWindow.floorDiv(elapsedMillis > 0 ? nowMillis - 1 : nowMillis, INTERVAL_MILLIS);
+        // Only intervals still in the window are worth spreading over.
+        long startMillis = Math.max(nowMillis - elapsedMillis, (lastInterval - capacity + 1) * INTERVAL_MILLIS);
+        if (currentInterval != Long.MIN_VALUE) {
+            startMillis = Math.max(startMillis, currentInterval * INTERVAL_MILLIS);
+        }
+        if (startMillis >= nowMillis || lastInterval <= currentInterval) {
+            addToInterval(Math.max(lastInterval, currentInterval), usedBytes);
+            return;
+        }
+
+        double bytesPerMilli = (double) usedBytes / (nowMillis - startMillis);
+        long added = 0;
+        for (long interval = SlidingWindow.floorDiv(startMillis, INTERVAL_MILLIS); interval < lastInterval; interval++) {
+            long toAdd = (long) (bytesPerMilli * ((interval + 1) * INTERVAL_MILLIS - startMillis)) - added;
+            addToInterval(interval, toAdd);
+            added += toAdd;
+        }
+        addToInterval(lastInterval, usedBytes - added);
+    }
+
+    /**
+     * Returns the most bytes used in any one interval within the given window up to now.
+     *
+     * @param nowMillis    the current time in milliseconds
+     * @param windowMillis the length of the window, no longer than the one given at construction
+     * @return the peak rate in bytes per second
+     */
+    synchronized long get(long nowMillis, long windowMillis) {
+        long span = Math.min((windowMillis + INTERVAL_MILLIS - 1) / INTERVAL_MILLIS, capacity);
+        long from = SlidingWindow.floorDiv(nowMillis, INTERVAL_MILLIS) - span + 1;
+        long peak = currentInterval >= from ? currentBytes : 0;
+        // The deque is ordered by interval, find the first one in the window.
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (intervals[index(mid)] < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low < size) {
+            peak = Math.max(peak, bytes[index(low)]);
+        }
+        return peak;
+    }
+
+    private void addToInterval(long interval, long usedBytes) {
+        if (interval != currentInterval) {
+            if (currentBytes > 0) {
+                push(currentInterval, currentBytes);
+            }
+            currentInterval = interval;
+            currentBytes = 0;
+        }
+        currentBytes += usedBytes;
+    }
+
+    private void push(long interval, long usedBytes) {
+        while (size > 0 && bytes[index(size - 1)] <= usedBytes) {
+            size--;
+        }
+        while (size > 0 && intervals[head] <= interval - capacity) {
+            head = (head + 1) % capacity;
+            size--;
+        }
+        int tail = index(size);
+        intervals[tail] = interval;
+        bytes[tail] = usedBytes;
+        size++;
+    }
+
+    private int index(int position) {
+        return (head + position) % capacity;
+    }
+}
@@ -0,0 +1,43 @@
+package com.willowtreeapps.trafficcop;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small lock-free pool of recycled objects. Each slot is claimed with a single atomic swap, so
+ * nothing is allocated to take or return an object. Objects returned to a full pool are dropped.
+ */
+final class Pool<T> {
+    private final AtomicReferenceArray<T> slots;
+
+    Pool(int size) {
+        slots = new AtomicReferenceArray<T>(size);
+    }
+
+    /**
+     * Takes an object from the pool.
+     *
+     * @return the object, or null if the pool is empty
+     */
+    T acquire() {
+        for (int i = 0; i < slots.length(); i++) {
+            T item = slots.getAndSet(i, null);
+            if (item != null) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns an object to the pool. It must not be used afterwards.
+     *
+     * @param item the object
+     */
+    void release(T item) {
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.compareAndSet(i, null, item)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.willowtreeapps.trafficcop;
+
+/**
+ * A listener that will be called when data usage reaches a threshold, given the data usage as
+ * primitives instead of a {@link DataUsage}. Use {@link DataUsageFormatter} to describe it without
+ * creating intermediate strings.
+ */
+public interface PrimitiveDataUsageAlertListener {
+    /**
+     * Called when data usage reaches a threshold.
+     *
+     * @param threshold the threshold reached
+     * @param type      the type of data usage
+     * @param bytes     the number of bytes used
+     * @param millis    the number of milliseconds they were used in
+     * @param tag       the {@link TrafficTag} of the data usage, or {@link TrafficTag#NONE}
+     */
+    void alertThreshold(Threshold threshold, DataUsage.Type type, long bytes, long millis, int tag);
+}
@@ -0,0 +1,237 @@
+package com.willowtreeapps.trafficcop;
+
+import android.net.TrafficStats;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * A {@link TaggedDataUsageStatsProvider} that reads the per-tag counters the kernel keeps for the
+ * app's uid in {@code /proc/net/xt_qtaguid/stats}. Totals for the whole app come from
+ * {@link TrafficStats}.</p>
+ * <p>
+ * The file is read into a reused direct buffer and parsed byte by byte, like
+ * {@link NetDevDataUsageStatsProvider}. Call {@link #close()} to release the file when you are done
+ * with the provider.</p>
+ */
+public class QtaguidDataUsageStatsProvider implements TaggedDataUsageStatsProvider, SnapshotDataUsageStatsProvider, Closeable {
+    private static final File STATS_FILE = new File("/proc/net/xt_qtaguid/stats");
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    // idx iface acct_tag_hex uid_tag_int cnt_set rx_bytes rx_packets tx_bytes tx_packets ...
+    private static final int COLUMN_TAG = 2;
+    private static final int COLUMN_UID = 3;
+    private static final int COLUMN_RX_BYTES = 5;
+    private static final int COLUMN_TX_BYTES = 7;
+
+    private final int uid;
+    private final File statsFile;
+    private RandomAccessFile randomAccessFile;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    // The parse position in the buffer.
+    private int position;
+
+    /**
+     * Constructs a new provider for the given uid, usually
+     * {@code context.getApplicationInfo().uid}.
+     *
+     * @param uid the app's uid
+     */
+    public QtaguidDataUsageStatsProvider(int uid) {
+        this(uid, STATS_FILE);
+    }
+
+    /**
+     * Constructs a new provider for the given uid that reads the stats from the given file.
+     *
+     * @param uid       the app's uid
+     * @param statsFile the file in the format of {@code /proc/net/xt_qtaguid/stats}
+     */
+    public QtaguidDataUsageStatsProvider(int uid, File statsFile) {
+        if (statsFile == null) {
+            throw new IllegalArgumentException("statsFile cannot be null");
+        }
+        this.uid = uid;
+        this.statsFile = statsFile;
+    }
+
+    @Override
+    public long getNanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public long getBytesTransmitted() {
+        return TrafficStats.getUidTxBytes(uid);
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return TrafficStats.getUidRxBytes(uid);
+    }
+
+    @Override
+    public void readSnapshot(UsageSnapshot reuse) {
+        // Still two reads, the same as the getters: TrafficStats has no call for both counters.
+        long bytesReceived = TrafficStats.getUidRxBytes(uid);
+        long bytesTransmitted = TrafficStats.getUidTxBytes(uid);
+        reuse.set(System.nanoTime(), bytesReceived, bytesTransmitted);
+    }
+
+    @Override
+    public synchronized void getTaggedBytes(IntLongMap bytesReceived, IntLongMap bytesTransmitted) {
+        bytesReceived.clear();
+        bytesTransmitted.clear();
+        try {
+            if (randomAccessFile == null) {
+                randomAccessFile = new RandomAccessFile(statsFile, "r");
+            }
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer.clear();
+            // Files in /proc don't have a size, read until the end and grow the buffer if needed.
+            while (channel.read(buffer, buffer.position()) >= 0) {
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+            }
+            parse(buffer.position(), bytesReceived, bytesTransmitted);
+        } catch (IOException e) {
+            // Tagged stats aren't available, report nothing.
+            close();
+        }
+    }
+
+    @Override
+    public boolean isTaggedUsageAvailable() {
+        return statsFile.canRead();
+    }
+
+    /**
+     * Closes the stats file. It is opened again on the next read.
+     */
+    @Override
+    public synchronized void close() {
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+            randomAccessFile = null;
+        }
+    }
+
+    /**
+     * Parses the lines after the header, adding the bytes of the tagged lines for this uid.
+     */
+    private void parse(int limit, IntLongMap bytesReceived, IntLongMap bytesTransmitted) {
+        position = 0;
+        skipLine(limit);
+        while (position < limit) {
+            long accountTag = -1;
+            long lineUid = -1;
+            long received = -1;
+            long transmitted = -1;
+            for (int column = 0; column <= COLUMN_TX_BYTES; column++) {
+                if (column == COLUMN_TAG) {
+                    accountTag = readHex(limit);
+                } else if (column == COLUMN_UID) {
+                    lineUid = readDecimal(limit);
+                } else if (column == COLUMN_RX_BYTES) {
+                    received = readDecimal(limit);
+                } else if (column == COLUMN_TX_BYTES) {
+                    transmitted = readDecimal(limit);
+                } else {
+                    skipColumn(limit);
+                }
+            }
+            // The account tag has the tag in the upper 32 bits and the uid in the lower, for
+            // example 0x3e800000000. A tag of 0 is untagged traffic.
+            int tag = (int) (accountTag >>> 32);
+            if (lineUid == uid && accountTag != -1 && tag != 0 && received >= 0 && transmitted >= 0) {
+                bytesReceived.add(tag, received);
+                bytesTransmitted.add(tag, transmitted);
+            }
+            skipLine(limit);
+        }
+    }
+
+    /**
+     * Reads a column of decimal digits, returning -1 if it has none.
+     */
+    private long readDecimal(int limit) {
+        skipSpaces(limit);
+        long value = 0;
+        boolean hasDigits = false;
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            value = value * 10 + (b - '0');
+            hasDigits = true;
+            position++;
+        }
+        skipToken(limit);
+        return hasDigits ? value : -1;
+    }
+
+    /**
+     * Reads a column of hex digits after a 0x, returning -1 if it has none.
+     */
+    private long readHex(int limit) {
+        skipSpaces(limit);
+        if (position + 1 < limit && buffer.get(position) == '0' && buffer.get(position + 1) == 'x') {
+            position += 2;
+        }
+        long value = 0;
+        boolean hasDigits = false;
+        while (position < limit) {
+            byte b = buffer.get(position);
+            int digit;
+            if (b >= '0' && b <= '9') {
+                digit = b - '0';
+            } else if (b >= 'a' && b <= 'f') {
+                digit = b - 'a' + 10;
+            } else {
+                break;
+            }
+            value = value << 4 | digit;
+            hasDigits = true;
+            position++;
+        }
+        skipToken(limit);
+        return hasDigits ? value : -1;
+    }
+
+    private void skipColumn(int limit) {
+        skipSpaces(limit);
+        skipToken(limit);
+    }
+
+    private void skipToken(int limit) {
+        while (position < limit && buffer.get(position) != ' ' && buffer.get(position) != '\n') {
+            position++;
+        }
+    }
+
+    private void skipSpaces(int limit) {
+        while (position < limit && buffer.get(position) == ' ') {
+            position++;
+        }
+    }
+
+    private void skipLine(int limit) {
+        while (position < limit && buffer.get(position) != '\n') {
+            position++;
+        }
+        position++;
+    }
+}
@@ -0,0 +1,163 @@
+package com.willowtreeapps.trafficcop;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * <p>
+ * A token bucket that lets network clients check data usage against a threshold before using the
+ * data, instead of being alerted afterwards. The bucket holds up to the threshold's bytes and
+ * refills at its rate. Get one with {@link TrafficCop#getQuota(DataUsage.Type)}.</p>
+ * <pre>{@code
+ * Quota quota = trafficCop.getQuota(DataUsage.Type.DOWNLOAD);
+ * if (quota.tryAcquire(chunkSize)) {
+ *     // download the chunk
+ * }
+ * }</pre>
+ * <p>
+ * Acquiring only reserves bytes. Whenever the TrafficCop measures usage it charges the bucket for
+ * what the counters report minus what was reserved since, so usage nobody asked for still counts
+ * and reservations that weren't used are given back.</p>
+ * <p>
+ * All methods are safe to call from any thread and don't lock.</p>
+ */
+public final class Quota {
+    private final long capacity;
+    private final double bytesPerNano;
+    private final DataUsageStatsProvider clock;
+    private final AtomicLong tokens;
+    private final AtomicLong lastRefill;
+    private final AtomicLong reserved = new AtomicLong();
+
+    /**
+     * Constructs a bucket for the given threshold, or an unlimited one for {@link Threshold#none()}.
+     */
+    Quota(Threshold threshold, DataUsageStatsProvider clock) {
+        this.clock = clock;
+        if (threshold == Threshold.none()) {
+            capacity = Long.MAX_VALUE;
+            bytesPerNano = 0;
+        } else {
+            capacity = threshold.bytes;
+            bytesPerNano = threshold.bytes / (threshold.millis * 1000000.0);
+        }
+        tokens = new AtomicLong(capacity);
+        lastRefill = new AtomicLong(clock.getNanoTime());
+    }
+
+    /**
+     * Returns if this quota never runs out, because there is no threshold for its type of data
+     * usage.
+     *
+     * @return true if unlimited, false otherwise
+     */
+    public boolean isUnlimited() {
+        return capacity == Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of bytes that can be acquired right now.
+     *
+     * @return the available bytes, negative if more was used than the quota allows
+     */
+    public long available() {
+        refill();
+        return tokens.get();
+    }
+
+    /**
+     * Reserves the given number of bytes if they are available. A request larger than the whole
+     * quota is allowed when the bucket is full, leaving it in debt.
+     *
+     * @param bytes the number of bytes about to be used
+     * @return true if the bytes were reserved, false if there aren't enough
+     */
+    public boolean tryAcquire(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes cannot be negative");
+        }
+        if (isUnlimited()) {
+            return true;
+        }
+        refill();
+        long needed = Math.min(bytes, capacity);
+        for (; ; ) {
+            long available = tokens.get();
+            if (available < needed) {
+                return false;
+            }
+            if (tokens.compareAndSet(available, available - bytes)) {
+                reserved.addAndGet(bytes);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reserves the given number of bytes, waiting for the quota to refill if needed.
+     *
+     * @param bytes         the number of bytes about to be used
+     * @param timeoutMillis the longest time to wait in milliseconds, {@link Long#MAX_VALUE} to
+     *                      wait for as long as it takes
+     * @return true if the bytes were reserved, false if the timeout passed first
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean acquire(long bytes, long timeoutMillis) throws InterruptedException {
+        // Saturates rather than overflowing, and counting down from the start can't overflow either.
+        long timeoutNanos = MILLISECONDS.toNanos(timeoutMillis);
+        long startNanos = System.nanoTime();
+        while (!tryAcquire(bytes)) {
+            long remainingNanos = timeoutNanos - (System.nanoTime() - startNanos);
+            if (remainingNanos <= 0) {
+                return false;
+            }
+            long missing = Math.min(bytes, capacity) - tokens.get();
+            long waitNanos = Math.min(remainingNanos, Math.max((long) (missing / bytesPerNano), 1000000));
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+        return true;
+    }
+
+    /**
+     * Charges the bucket for the bytes the counters report were used, less what was reserved in
+     * the meantime.
+     */
+    void charge(long bytes) {
+        if (isUnlimited()) {
+            return;
+        }
+        long unreserved = bytes - reserved.getAndSet(0);
+        if (unreserved != 0) {
+            add(-unreserved);
+        }
+    }
+
+    private void refill() {
+        if (isUnlimited()) {
+            return;
+        }
+        long now = clock.getNanoTime();
+        long last = lastRefill.get();
+        long bytes = (long) ((now - last) * bytesPerNano);
+        if (bytes <= 0) {
+            return;
+        }
+        // Only move the time forward by whole bytes so fractions aren't lost, whoever moves it
+        // adds the bytes.
+        long refilledTo = last + (long) (bytes / bytesPerNano);
+        if (lastRefill.compareAndSet(last, Math.min(refilledTo, now))) {
+            add(bytes);
+        }
+    }
+
+    private void add(long bytes) {
+        for (; ; ) {
+            long current = tokens.get();
+            long next = Math.min(capacity, current + bytes);
+            if (next <= current && bytes > 0 || tokens.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+}
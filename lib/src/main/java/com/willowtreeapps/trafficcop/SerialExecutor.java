@@ -0,0 +1,49 @@
+package com.willowtreeapps.trafficcop;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks one at a time and in order on another executor, which may itself use many threads.
+ * Tasks are queued without locking and drained by whichever thread wins the race to start a drain.
+ */
+final class SerialExecutor implements Executor {
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            boolean isDrained = false;
+            try {
+                do {
+                    tasks.poll().run();
+                } while (pending.decrementAndGet() != 0);
+                isDrained = true;
+            } finally {
+                // A task threw, even an Error: count it as done and hand the rest of the queue off
+                // before letting the failure through, or nothing would ever run again.
+                if (!isDrained && pending.decrementAndGet() != 0) {
+                    executor.execute(this);
+                }
+            }
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("task cannot be null");
+        }
+        tasks.offer(task);
+        if (pending.getAndIncrement() == 0) {
+            executor.execute(drain);
+        }
+    }
+}
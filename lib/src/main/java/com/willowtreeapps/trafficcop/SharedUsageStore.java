@@ -0,0 +1,281 @@
+package com.willowtreeapps.trafficcop;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * A {@link UsageStore} shared by every process of an app, so that thresholds apply to their
+ * combined usage. Give each process's TrafficCop a store for the same file. Each TrafficCop
+ * {@link #merge merges} its usage into the shared counters whenever it saves, and picks up what
+ * the other processes saved at the same time, so the combined usage is at most the flush interval
+ * behind.</p>
+ * <p>
+ * The counters live in a memory-mapped file that is only touched while holding a lock on it, so
+ * a merge reads, combines and writes them with no other process's save in between. The TrafficCop
+ * decides how they combine: bytes are added up, while time is wall-clock time that processes
+ * measure side by side and so is not.</p>
+ * <p>
+ * The file holds two copies of the counters and a save writes the one not in use before switching
+ * to it, so a process killed part way through a save leaves the previous values intact. The lock
+ * is released by the system when a process dies. If the file can't be read or written the error
+ * is logged and the store acts as if nothing was saved, so it never stops usage from being
+ * measured.</p>
+ * <p>
+ * Rolling thresholds and early alerts are still tracked by each process on its own.</p>
+ */
+public class SharedUsageStore implements UsageStore {
+    private static final String TAG = "SharedUsageStore";
+    private static final int MAGIC = 0x54435331; // "TCS1"
+    private static final int HEADER_SIZE = 16; // magic, state length, active copy, has been saved
+    private static final int INDEX_LENGTH = 4;
+    private static final int INDEX_ACTIVE = 8;
+    private static final int INDEX_SAVED = 12;
+    // File locks are held by the whole process, so stores in one process also need a lock of
+    // their own for each file.
+    private static final ConcurrentMap<String, Object> PROCESS_LOCKS = new ConcurrentHashMap<String, Object>();
+
+    private final File file;
+    private final Object processLock;
+    private final CRC32 crc = new CRC32();
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private int stateLength = -1;
+    private long[] scratch;
+
+    /**
+     * Constructs a new store that shares its counters through the given file.
+     *
+     * @param file the counter file, the same for every process
+     */
+    public SharedUsageStore(File file) {
+        if (file == null) {
+            throw new IllegalArgumentException("file cannot be null");
+        }
+        this.file = file;
+        String path = file.getAbsolutePath();
+        PROCESS_LOCKS.putIfAbsent(path, new Object());
+        this.processLock = PROCESS_LOCKS.get(path);
+    }
+
+    @Override
+    public boolean load(long[] state) {
+        synchronized (processLock) {
+            try {
+                FileLock lock = open(state.length).getChannel().lock();
+                try {
+                    read(state);
+                    return buffer.getInt(INDEX_SAVED) != 0;
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read " + file, e);
+                close();
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public void save(long[] state) {
+        synchronized (processLock) {
+            try {
+                FileLock lock = open(state.length).getChannel().lock();
+                try {
+                    write(state);
+                    buffer.putInt(INDEX_SAVED, 1);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write " + file, e);
+                close();
+            }
+        }
+    }
+
+    @Override
+    public void merge(long[] state, Merger merger) {
+        synchronized (processLock) {
+            try {
+                FileLock lock = open(state.length).getChannel().lock();
+                try {
+                    if (scratch == null || scratch.length != state.length) {
+                        scratch = new long[state.length];
+                    }
+                    if (buffer.getInt(INDEX_SAVED) != 0) {
+                        read(scratch);
+                    } else {
+                        Arrays.fill(scratch, 0);
+                    }
+                    merger.merge(scratch, state);
+                    write(scratch);
+                    buffer.putInt(INDEX_SAVED, 1);
+                    System.arraycopy(scratch, 0, state, 0, state.length);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write " + file, e);
+                close();
+            }
+        }
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    /**
+     * Resets the shared counters to zero for every process. The file itself is kept since other
+     * processes may have it mapped.
+     */
+    @Override
+    public void clear() {
+        synchronized (processLock) {
+            try {
+                int length = stateLength >= 0 ? stateLength : savedLength();
+                if (length < 0) {
+                    return;
+                }
+                FileLock lock = open(length).getChannel().lock();
+                try {
+                    write(new long[length]);
+                    buffer.putInt(INDEX_SAVED, 0);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to clear " + file, e);
+                close();
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the state in the file, or -1 if it holds none.
+     */
+    private int savedLength() throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return -1;
+        }
+        RandomAccessFile header = new RandomAccessFile(file, "r");
+        try {
+            return header.readInt() == MAGIC ? header.readInt() : -1;
+        } finally {
+            header.close();
+        }
+    }
+
+    /**
+     * Maps the file for state of the given length, starting over if it holds state of a different
+     * length.
+     */
+    private RandomAccessFile open(int length) throws IOException {
+        if (buffer != null && stateLength == length) {
+            return randomAccessFile;
+        }
+        close();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        FileLock lock = randomAccessFile.getChannel().lock();
+        try {
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * copySize(length));
+            stateLength = length;
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(INDEX_LENGTH) != length) {
+                buffer.putInt(INDEX_LENGTH, length);
+                buffer.putInt(INDEX_ACTIVE, 0);
+                buffer.putInt(INDEX_SAVED, 0);
+                writeCopy(0, new long[length]);
+                // The magic goes last so a header torn by a crash is started over.
+                buffer.putInt(0, MAGIC);
+            }
+        } finally {
+            lock.release();
+        }
+        return randomAccessFile;
+    }
+
+    /**
+     * Reads the active copy, falling back to the other one if it doesn't check out.
+     */
+    private void read(long[] state) {
+        int active = buffer.getInt(INDEX_ACTIVE) & 1;
+        if (!readCopy(active, state) && !readCopy(1 - active, state)) {
+            for (int i = 0; i < state.length; i++) {
+                state[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Writes the copy not in use and only then switches to it.
+     */
+    private void write(long[] state) {
+        int next = 1 - (buffer.getInt(INDEX_ACTIVE) & 1);
+        writeCopy(next, state);
+        buffer.putInt(INDEX_ACTIVE, next);
+    }
+
+    private boolean readCopy(int copy, long[] state) {
+        int position = HEADER_SIZE + copy * copySize(stateLength);
+        crc.reset();
+        for (int i = 0; i < state.length; i++) {
+            state[i] = buffer.getLong(position + i * 8);
+            update(state[i]);
+        }
+        return buffer.getLong(position + state.length * 8) == checksum();
+    }
+
+    private void writeCopy(int copy, long[] state) {
+        int position = HEADER_SIZE + copy * copySize(stateLength);
+        crc.reset();
+        for (int i = 0; i < state.length; i++) {
+            buffer.putLong(position + i * 8, state[i]);
+            update(state[i]);
+        }
+        buffer.putLong(position + state.length * 8, checksum());
+    }
+
+    /**
+     * Returns the checksum with a marker bit set, so that a zeroed copy never passes as valid.
+     */
+    private long checksum() {
+        return crc.getValue() | (1L << 32);
+    }
+
+    private void update(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (value >>> shift));
+        }
+    }
+
+    private static int copySize(int stateLength) {
+        // state + checksum
+        return stateLength * 8 + 8;
+    }
+
+    private void close() {
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // Nothing left to lose, all writes went through the mapping.
+            }
+            randomAccessFile = null;
+        }
+        buffer = null;
+        stateLength = -1;
+    }
+}
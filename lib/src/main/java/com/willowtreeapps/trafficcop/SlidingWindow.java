@@ -0,0 +1,157 @@
+package com.willowtreeapps.trafficcop;
+
+/**
+ * A fixed-size ring buffer of time buckets that can answer "how many bytes in the last n
+ * milliseconds" in constant time. Each bucket holds the running total at the end of that bucket,
+ * so the usage in a window is the current total minus the total of the bucket just before the
+ * window. The bytes of a measurement are spread evenly over the buckets it covers, so a long
+ * measurement only counts towards a window for the part of it inside the window. Nothing is
+ * allocated after construction.
+ */
+final class SlidingWindow {
+    /**
+     * Windows shorter than a second are tracked with one bucket per this many milliseconds.
+     */
+    static final int MIN_BUCKET_MILLIS = 10;
+    /**
+     * Windows up to this length are tracked with one bucket per second, longer ones with one
+     * bucket per minute.
+     */
+    static final int MAX_SECOND_RESOLUTION = 60 * 60;
+
+    private final long bucketMillis;
+    private final long[] totals;
+    private long total;
+    private long firstBucket = Long.MIN_VALUE;
+    private long lastBucket = Long.MIN_VALUE;
+
+    /**
+     * Constructs a window that can answer queries for spans of up to the given number of
+     * milliseconds.
+     *
+     * @param windowMillis the longest span that will be queried
+     */
+    SlidingWindow(long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive");
+        }
+        bucketMillis = bucketMillis(windowMillis);
+        // Two extra buckets, for the one now is in and the total from just before the window.
+        totals = new long[(int) ((windowMillis + bucketMillis - 1) / bucketMillis + 2)];
+    }
+
+    /**
+     * Returns the longest span that can be queried.
+     */
+    long windowMillis() {
+        return (totals.length - 2) * bucketMillis;
+    }
+
+    /**
+     * Returns the length of the buckets used for a window of the given length, windows with the
+     * same bucket length can share a window.
+     *
+     * @param windowMillis the longest span that will be queried
+     * @return the length of a bucket in milliseconds
+     */
+    static long bucketMillis(long windowMillis) {
+        if (windowMillis < 1000) {
+            return MIN_BUCKET_MILLIS;
+        }
+        return windowMillis <= MAX_SECOND_RESOLUTION * 1000L ? 1000 : 60 * 1000;
+    }
+
+    /**
+     * Records the bytes used in a measurement that ended at the given time. Times must not go
+     * backwards, usage from before the last measurement ended is spread up to the time it ended
+     * instead.
+     *
+     * @param nowMillis     the time the measurement ended in milliseconds, may be negative
+     * @param elapsedMillis the length of the measurement in milliseconds
+     * @param bytes         the number of bytes used
+     */
+    void add(long nowMillis, long elapsedMillis, long bytes) {
+        long startMillis = nowMillis - Math.max(elapsedMillis, 0);
+        if (firstBucket == Long.MIN_VALUE) {
+            // The window starts when the first measurement did.
+            advance(startMillis);
+        }
+        long bucket = advance(nowMillis);
+        // The bucket the end of the measurement falls in, a measurement ending right at a
+        // bucket's start used none of it.
+        long endBucket = startMillis < nowMillis ? floorDiv(nowMillis - 1, bucketMillis) : bucket;
+        long oldestBucket = bucket - totals.length + 1;
+        long from = Math.max(Math.max(floorDiv(startMillis, bucketMillis), firstBucket), oldestBucket);
+        if (from < endBucket) {
+            double bytesPerMilli = (double) bytes / (nowMillis - startMillis);
+            for (long b = from; b < endBucket; b++) {
+                totals[index(b)] += (long) (bytesPerMilli * ((b + 1) * bucketMillis - startMillis));
+            }
+        }
+        total += bytes;
+        for (long b = Math.max(endBucket, oldestBucket); b <= bucket; b++) {
+            totals[index(b)] = total;
+        }
+    }
+
+    /**
+     * Returns the bytes used in the given number of milliseconds up to now, including all of the
+     * bucket the window starts in.
+     *
+     * @param nowMillis the current time in milliseconds
+     * @param millis    the length of the window, no longer than the one given at construction
+     * @return the number of bytes used in the window
+     */
+    long sum(long nowMillis, long millis) {
+        long bucket = advance(nowMillis);
+        long before = Math.max(floorDiv(nowMillis - millis, bucketMillis) - 1, bucket - totals.length + 1);
+        if (before < firstBucket) {
+            return total;
+        }
+        return total - totals[index(before)];
+    }
+
+    /**
+     * Returns the bytes used since this window was created.
+     *
+     * @return the number of bytes used
+     */
+    long total() {
+        return total;
+    }
+
+    private long advance(long nowMillis) {
+        long bucket = floorDiv(nowMillis, bucketMillis);
+        if (firstBucket == Long.MIN_VALUE) {
+            firstBucket = bucket;
+            lastBucket = bucket;
+            totals[index(bucket)] = total;
+            return bucket;
+        }
+        if (bucket <= lastBucket) {
+            return lastBucket;
+        }
+        // Buckets with no usage carry the previous total, only the ones that can still be read
+        // need to be written.
+        long from = Math.max(lastBucket + 1, bucket - totals.length + 1);
+        for (long b = from; b <= bucket; b++) {
+            totals[index(b)] = total;
+        }
+        lastBucket = bucket;
+        return bucket;
+    }
+
+    private int index(long bucket) {
+        int index = (int) (bucket % totals.length);
+        return index < 0 ? index + totals.length : index;
+    }
+
+    /**
+     * Math.floorDiv, which needs Java 8, for a positive divisor. Times before the clock's origin
+     * round down to the bucket they fall in rather than towards zero.
+     */
+    static long floorDiv(long x, long y) {
+        long quotient = x / y;
+        return x % y < 0 ? quotient - 1 : quotient;
+    }
+}
@@ -0,0 +1,16 @@
+package com.willowtreeapps.trafficcop;
+
+/**
+ * A {@link DataUsageStatsProvider} that can read all its counters in a single call. TrafficCop
+ * uses this instead of the separate getters when it's available, so implement it if your counters
+ * come from one source that can be read once for both, like {@link NetDevDataUsageStatsProvider}
+ * does with its file. Otherwise it only saves the calls through the interface.
+ */
+public interface SnapshotDataUsageStatsProvider extends DataUsageStatsProvider {
+    /**
+     * Reads the time and the total bytes received and transmitted so far into the given snapshot.
+     *
+     * @param reuse the snapshot to fill, owned by the caller
+     */
+    public void readSnapshot(UsageSnapshot reuse);
+}
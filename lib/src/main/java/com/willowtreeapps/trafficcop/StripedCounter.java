@@ -0,0 +1,44 @@
+package com.willowtreeapps.trafficcop;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to with little contention, in the spirit of Java 8's
+ * {@code LongAdder}, which isn't available on Android. Each thread adds to one of several cells
+ * picked by its id, spaced a cache line apart so they don't share one. Reading sums the cells.
+ */
+final class StripedCounter {
+    // Longs per cache line, so each cell sits on its own line.
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    StripedCounter(int stripes) {
+        int size = Integer.highestOneBit(Math.max(stripes, 1) * 2 - 1);
+        cells = new AtomicLongArray(size * PADDING);
+        mask = size - 1;
+    }
+
+    void add(long value) {
+        cells.getAndAdd(cell(), value);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i <= mask; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private int cell() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        return ((h ^ (h >>> 16)) & mask) * PADDING;
+    }
+}
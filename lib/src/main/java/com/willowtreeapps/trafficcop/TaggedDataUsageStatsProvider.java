@@ -0,0 +1,26 @@
+package com.willowtreeapps.trafficcop;
+
+/**
+ * A {@link DataUsageStatsProvider} that can also report data usage per {@link TrafficTag}, so that
+ * thresholds can target the usage of a single feature.
+ *
+ * @see QtaguidDataUsageStatsProvider
+ */
+public interface TaggedDataUsageStatsProvider extends DataUsageStatsProvider {
+    /**
+     * Reads the total bytes received and transmitted so far for each tag. The maps are cleared
+     * before being filled.
+     *
+     * @param bytesReceived    the map to fill with the bytes received per tag
+     * @param bytesTransmitted the map to fill with the bytes transmitted per tag
+     */
+    public void getTaggedBytes(IntLongMap bytesReceived, IntLongMap bytesTransmitted);
+
+    /**
+     * Returns if usage per tag can be read on this device. Thresholds for a tag fail to build if
+     * it can't, rather than never alerting.
+     *
+     * @return true if tagged usage is available, false otherwise
+     */
+    public boolean isTaggedUsageAvailable();
+}
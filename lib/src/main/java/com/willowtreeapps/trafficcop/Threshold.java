@@ -6,9 +6,18 @@ package com.willowtreeapps.trafficcop;
  * threshold if either:</p>
  * <p>a) The time span of data usage is over the threshold and the average rate of usage is higher than the threshold.</p>
  * <p>b) The time span of data usage is under the threshold and the amount of data is over the threshold.</p>
+ * <p>A rolling threshold, created with {@link #rolling(long, SizeUnit)}, is instead reached when the
+ * amount of data used in the most recent time span is over the threshold.</p>
+ * <p>A peak threshold, created with {@link #peak(long, SizeUnit)}, is reached when the data used in
+ * any one second is faster than the threshold's rate.</p>
  */
 public class Threshold {
-    private static final Threshold NONE = new Threshold(-1, -1);
+    private static final int KIND_AVERAGE = 0;
+    private static final int KIND_ROLLING = 1;
+    private static final int KIND_PEAK = 2;
+    private static final Threshold NONE = new Threshold(-1, -1, KIND_AVERAGE, TrafficTag.NONE);
+    // Products of values under this fit in a long.
+    private static final long MAX_SMALL_FACTOR = 1L << 31;
 
     /**
      * The number of bytes that must be reached to hit the threshold.
@@ -16,13 +25,53 @@ public class Threshold {
     public final long bytes;
 
     /**
-     * The number of seconds that the bytes must be reached in.
+     * The number of seconds that the bytes must be reached in, rounded down.
+     *
+     * @see #millis
      */
     public final int seconds;
 
-    private Threshold(long bytes, int seconds) {
+    /**
+     * The number of milliseconds that the bytes must be reached in.
+     */
+    public final long millis;
+
+    /**
+     * The {@link TrafficTag} whose data usage this threshold applies to, or {@link TrafficTag#NONE}
+     * for all of the app's data usage.
+     */
+    public final int tag;
+
+    private final int kind;
+
+    private Threshold(long bytes, long millis, int kind, int tag) {
         this.bytes = bytes;
-        this.seconds = seconds;
+        this.millis = millis;
+        this.seconds = millis == -1 ? -1 : (int) Math.min(millis / 1000, Integer.MAX_VALUE);
+        this.kind = kind;
+        this.tag = tag;
+    }
+
+    /**
+     * Returns if this threshold is measured over a rolling time span instead of the average since
+     * it was last reached.
+     *
+     * @return true if this is a rolling threshold, false otherwise
+     * @see #rolling(long, SizeUnit)
+     */
+    public boolean isRolling() {
+        return kind == KIND_ROLLING;
+    }
+
+    /**
+     * Returns if this threshold is reached by the peak rate of usage in any one second instead of
+     * the average rate.
+     *
+     * @return true if this is a peak threshold, false otherwise
+     * @see #peak(long, SizeUnit)
+     */
+    public boolean isPeak() {
+        return kind == KIND_PEAK;
     }
 
     /**
@@ -32,9 +81,56 @@ public class Threshold {
      * @return true if it reaches this threshold, false otherwise
      */
     public boolean hasReached(DataUsage usage) {
-        return !(bytes == -1 && seconds == -1)
-                && (seconds >= usage.seconds && bytes <= usage.bytes
-                || usage.seconds >= seconds && usage.bytes * seconds >= bytes * usage.seconds);
+        return hasReached(usage.bytes, usage.millis);
+    }
+
+    /**
+     * Determines if the given number of bytes used in the given number of milliseconds reaches
+     * this threshold, without needing a {@link DataUsage}. The rates are compared exactly, even
+     * when the products don't fit in a long.
+     */
+    boolean hasReached(long usageBytes, long usageMillis) {
+        return !(bytes == -1 && millis == -1)
+                && (millis >= usageMillis && bytes <= usageBytes
+                || usageMillis >= millis && compareProducts(usageBytes, millis, bytes, usageMillis) >= 0);
+    }
+
+    /**
+     * Compares a * b to c * d for non-negative values without overflowing. Usually all of them
+     * are small enough to multiply directly, otherwise the full 128-bit products are compared.
+     *
+     * @return a negative number, zero or a positive number as a * b is less than, equal to or
+     * greater than c * d
+     */
+    static int compareProducts(long a, long b, long c, long d) {
+        if ((a | b | c | d) < MAX_SMALL_FACTOR) {
+            long left = a * b;
+            long right = c * d;
+            return left < right ? -1 : (left == right ? 0 : 1);
+        }
+        long leftHigh = multiplyHigh(a, b);
+        long rightHigh = multiplyHigh(c, d);
+        if (leftHigh != rightHigh) {
+            return leftHigh < rightHigh ? -1 : 1;
+        }
+        // The low halves are compared unsigned.
+        long leftLow = a * b + Long.MIN_VALUE;
+        long rightLow = c * d + Long.MIN_VALUE;
+        return leftLow < rightLow ? -1 : (leftLow == rightLow ? 0 : 1);
+    }
+
+    /**
+     * Returns the high 64 bits of the 128-bit product of two non-negative values.
+     */
+    private static long multiplyHigh(long a, long b) {
+        long aHigh = a >>> 32;
+        long aLow = a & 0xffffffffL;
+        long bHigh = b >>> 32;
+        long bLow = b & 0xffffffffL;
+        long lowLow = aLow * bLow;
+        long middle = aHigh * bLow + (lowLow >>> 32);
+        long carry = (middle & 0xffffffffL) + aLow * bHigh;
+        return aHigh * bHigh + (middle >>> 32) + (carry >>> 32);
     }
 
     /**
@@ -45,7 +141,37 @@ public class Threshold {
      * @return a builder to chain the time span for the threshold
      */
     public static Builder of(long size, SizeUnit unit) {
-        return new Builder(unit.of(size));
+        return new Builder(unit.of(size), KIND_AVERAGE);
+    }
+
+    /**
+     * Constructs a Threshold that is reached when the given amount of data is used within the most
+     * recent time span, for example in any hour instead of on average since the last alert.
+     * The usage of a measurement is spread over the time it took, and after the app restarts
+     * the usage before it is read back from the TrafficCop's {@link UsageTimeSeries}. Rolling
+     * thresholds for a tag start over when the app restarts.
+     *
+     * @param size the size of data usage in the given unit
+     * @param unit the unit the size is given in
+     * @return a builder to chain the time span for the threshold
+     */
+    public static Builder rolling(long size, SizeUnit unit) {
+        return new Builder(unit.of(size), KIND_ROLLING);
+    }
+
+    /**
+     * Constructs a Threshold that is reached when the data used in any one second is faster than
+     * the given amount per time span, so a short burst isn't hidden by averaging it with the quiet
+     * time around it. It alerts once per burst: it can only be reached again after a whole time
+     * span without any second over the rate. Peak thresholds apply to all of the app's data usage,
+     * not to a tag.
+     *
+     * @param size the size of data usage in the given unit
+     * @param unit the unit the size is given in
+     * @return a builder to chain the time span for the threshold
+     */
+    public static Builder peak(long size, SizeUnit unit) {
+        return new Builder(unit.of(size), KIND_PEAK);
     }
 
     /**
@@ -59,20 +185,45 @@ public class Threshold {
 
     public static class Builder {
         private long size;
+        private int kind;
+        private int tag = TrafficTag.NONE;
 
-        private Builder(long size) {
+        private Builder(long size, int kind) {
             this.size = size;
+            this.kind = kind;
+        }
+
+        /**
+         * Only count data usage tagged with the given {@link TrafficTag}. This requires a
+         * {@link TaggedDataUsageStatsProvider}.
+         *
+         * @param tag the tag
+         * @return the builder for chaining
+         */
+        public Builder forTag(int tag) {
+            if (tag == TrafficTag.NONE) {
+                throw new IllegalArgumentException("tag cannot be TrafficTag.NONE");
+            }
+            if (kind == KIND_PEAK) {
+                throw new IllegalArgumentException("peak thresholds cannot be for a tag");
+            }
+            this.tag = tag;
+            return this;
         }
 
         /**
-         * Set the time span that this threshold must be reached in.
+         * Set the time span that this threshold must be reached in. Spans shorter than a second,
+         * for example {@code per(250, TimeUnit.MILLISECONDS)}, catch short bursts of usage.
          *
          * @param time the time span in the given unit
          * @param unit the unit the time span is given in
          * @return the threshold
          */
         public Threshold per(int time, TimeUnit unit) {
-            return new Threshold(size, unit.of(time));
+            if (time <= 0) {
+                throw new IllegalArgumentException("time must be positive");
+            }
+            return new Threshold(size, unit.toMillis(time), kind, tag);
         }
 
         /**
@@ -82,7 +233,7 @@ public class Threshold {
          * @return the threshold
          */
         public Threshold per(TimeUnit unit) {
-            return new Threshold(size, unit.of(1));
+            return new Threshold(size, unit.toMillis(1), kind, tag);
         }
     }
 }
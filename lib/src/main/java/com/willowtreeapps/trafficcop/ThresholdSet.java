@@ -0,0 +1,517 @@
+package com.willowtreeapps.trafficcop;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * All the thresholds a TrafficCop checks, laid out in arrays so that a measurement is checked
+ * against every one of them in a single pass without allocating.</p>
+ * <p>
+ * Each threshold keeps its own accumulator. Accumulators of thresholds averaged since their last
+ * alert live in the persisted state, two slots each for the bytes and milliseconds. Rolling
+ * thresholds of the same type and bucket length share a {@link SlidingWindow}, and each distinct
+ * window length is only summed once per measurement. The windows are refilled from a
+ * {@link UsageTimeSeries} when the process starts, and the persisted state holds the time each
+ * rolling threshold was last reached so usage it already alerted for doesn't count again. Each
+ * type of usage has a {@link PeakRate} that peak thresholds are checked against.</p>
+ * <p>
+ * Thresholds for a {@link TrafficTag} are fed the usage of that tag, passed in arrays indexed the
+ * same as {@link #tags()}.</p>
+ * <p>
+ * When given a lead time, it also keeps an exponentially weighted moving average of the rate of
+ * each type of usage and projects when each threshold will be reached at that rate, calling
+ * {@link Callback#onApproaching} once when the projection falls within the lead time.</p>
+ */
+final class ThresholdSet {
+    /**
+     * Called when a threshold is reached. The index is the threshold's position in the set, so the
+     * same threshold registered for more than one type is told apart.
+     */
+    interface Callback {
+        void onReached(int index, Threshold threshold, DataUsage.Type type, long bytes, long millis);
+
+        void onApproaching(int index, Threshold threshold, DataUsage.Type type, int secondsUntilReached, long bytesPerSecond);
+    }
+
+    private static final DataUsage.Type[] TYPES = DataUsage.Type.values();
+    /**
+     * How quickly the estimated rate follows changes, older rates weigh 1/e as much after this
+     * many seconds of measuring.
+     */
+    static final double RATE_TIME_CONSTANT_SECONDS = 10;
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+
+    private final Threshold[] thresholds;
+    private final int[] types;
+    // The index of the threshold's tag in tags, or -1.
+    private final int[] tagIndexes;
+    private final int[] tags;
+    private final double[] rates;
+    // For thresholds averaged since the last alert, the index of the bytes in the state, or -1.
+    private final int[] stateIndexes;
+    // For rolling thresholds, the index of the window sum, or -1.
+    private final int[] sumIndexes;
+    // For rolling thresholds, the index in the state of the time they were last reached, or -1.
+    private final int[] reachedIndexes;
+    private final long[] resetTotals;
+    // For thresholds averaged since the last alert, whether they were reset since the last merge.
+    private final boolean[] wasReset;
+
+    private final SlidingWindow[] windows;
+    private final int[] windowTypes;
+    private final int[] windowTagIndexes;
+    private final int[] sumWindows;
+    private final long[] sumMillis;
+    private final long[] sums;
+
+    private final int stateLength;
+
+    private final long leadMillis;
+    // Estimated bytes per second for each type and tag, indexed by rateIndex().
+    private final double[] estimatedRates;
+    private boolean hasEstimate;
+    private final boolean[] approaching;
+    // The peak rate of each type, and for peak thresholds whether they are in a burst they have
+    // already alerted for.
+    private final PeakRate[] peakRates;
+    private final boolean[] inBurst;
+
+    /**
+     * Constructs a set of the given thresholds, using the state starting at the given offset for
+     * their accumulators.
+     *
+     * @param thresholds       the thresholds
+     * @param types            the type of data usage each threshold applies to
+     * @param stateOffset      the first index in the state that belongs to this set
+     * @param leadMillis       how long before a threshold is projected to be reached to call
+     *                         {@link Callback#onApproaching}, or 0 to not project
+     * @param peakWindowMillis the longest window the peak rate can be asked for, peak thresholds
+     *                         extend it to their time span
+     */
+    ThresholdSet(List<Threshold> thresholds, List<DataUsage.Type> types, int stateOffset, long leadMillis, long peakWindowMillis) {
+        int count = thresholds.size();
+        this.thresholds = thresholds.toArray(new Threshold[count]);
+        this.types = new int[count];
+        this.tagIndexes = new int[count];
+        this.rates = new double[count];
+        this.stateIndexes = new int[count];
+        this.sumIndexes = new int[count];
+        this.reachedIndexes = new int[count];
+        this.resetTotals = new long[count];
+        this.wasReset = new boolean[count];
+        this.leadMillis = leadMillis;
+        this.approaching = new boolean[count];
+        this.inBurst = new boolean[count];
+
+        // Group the rolling thresholds into one window per type and resolution, sized for the
+        // longest threshold in the group.
+        List<long[]> windowKeys = new ArrayList<long[]>(); // type, tag index, bucket millis, longest millis
+        List<long[]> sumKeys = new ArrayList<long[]>(); // window, millis
+        List<Integer> tags = new ArrayList<Integer>();
+        int[] windowIndexes = new int[count];
+        int nextStateIndex = stateOffset;
+        for (int i = 0; i < count; i++) {
+            Threshold threshold = this.thresholds[i];
+            this.types[i] = types.get(i).ordinal();
+            this.rates[i] = threshold.bytes * 1000.0 / threshold.millis;
+
+            if (threshold.tag == TrafficTag.NONE) {
+                tagIndexes[i] = -1;
+            } else {
+                tagIndexes[i] = tags.indexOf(threshold.tag);
+                if (tagIndexes[i] == -1) {
+                    tagIndexes[i] = tags.size();
+                    tags.add(threshold.tag);
+                }
+            }
+
+            reachedIndexes[i] = -1;
+            if (threshold.isPeak()) {
+                stateIndexes[i] = -1;
+                sumIndexes[i] = -1;
+                peakWindowMillis = Math.max(peakWindowMillis, threshold.millis);
+                continue;
+            }
+
+            if (!threshold.isRolling()) {
+                stateIndexes[i] = nextStateIndex;
+                sumIndexes[i] = -1;
+                nextStateIndex += 2;
+                continue;
+            }
+
+            stateIndexes[i] = -1;
+            reachedIndexes[i] = nextStateIndex++;
+            long resolution = SlidingWindow.bucketMillis(threshold.millis);
+            windowIndexes[i] = indexOf(windowKeys, this.types[i], tagIndexes[i], resolution);
+            if (windowIndexes[i] == -1) {
+                windowIndexes[i] = windowKeys.size();
+                windowKeys.add(new long[]{this.types[i], tagIndexes[i], resolution, threshold.millis});
+            } else {
+                long[] key = windowKeys.get(windowIndexes[i]);
+                key[3] = Math.max(key[3], threshold.millis);
+            }
+
+            sumIndexes[i] = indexOf(sumKeys, windowIndexes[i], threshold.millis);
+            if (sumIndexes[i] == -1) {
+                sumIndexes[i] = sumKeys.size();
+                sumKeys.add(new long[]{windowIndexes[i], threshold.millis});
+            }
+        }
+        this.stateLength = nextStateIndex - stateOffset;
+
+        this.tags = new int[tags.size()];
+        for (int t = 0; t < this.tags.length; t++) {
+            this.tags[t] = tags.get(t);
+        }
+
+        windows = new SlidingWindow[windowKeys.size()];
+        windowTypes = new int[windows.length];
+        windowTagIndexes = new int[windows.length];
+        for (int w = 0; w < windows.length; w++) {
+            long[] key = windowKeys.get(w);
+            windowTypes[w] = (int) key[0];
+            windowTagIndexes[w] = (int) key[1];
+            windows[w] = new SlidingWindow(key[3]);
+        }
+
+        sumWindows = new int[sumKeys.size()];
+        sumMillis = new long[sumWindows.length];
+        sums = new long[sumWindows.length];
+        for (int k = 0; k < sumWindows.length; k++) {
+            sumWindows[k] = (int) sumKeys.get(k)[0];
+            sumMillis[k] = sumKeys.get(k)[1];
+        }
+
+        estimatedRates = new double[leadMillis > 0 ? TYPES.length * (this.tags.length + 1) : 0];
+
+        peakRates = new PeakRate[TYPES.length];
+        for (int type = 0; type < TYPES.length; type++) {
+            peakRates[type] = new PeakRate(peakWindowMillis);
+        }
+    }
+
+    /**
+     * Returns the number of slots in the state this set uses.
+     */
+    int stateLength() {
+        return stateLength;
+    }
+
+    /**
+     * Returns the distinct tags the thresholds apply to.
+     */
+    int[] tags() {
+        return tags;
+    }
+
+    /**
+     * Returns the number of thresholds in this set.
+     */
+    int size() {
+        return thresholds.length;
+    }
+
+    /**
+     * Returns the threshold at the given index.
+     */
+    Threshold threshold(int index) {
+        return thresholds[index];
+    }
+
+    /**
+     * Adds the usage from one measurement to every threshold's accumulator and calls the callback
+     * for each threshold that was reached, resetting its accumulator.
+     *
+     * @param state             the persisted state holding the accumulators
+     * @param nowMillis         the time of the measurement in milliseconds
+     * @param timeMillis        the time of the measurement in milliseconds since the epoch
+     * @param elapsedMillis     the length of the measurement in milliseconds
+     * @param elapsedNanos      the length of the measurement in nanoseconds, for estimating rates
+     * @param bytesReceived     the bytes received during the measurement
+     * @param bytesTransmitted  the bytes transmitted during the measurement
+     * @param taggedReceived    the bytes received during the measurement for each of the tags
+     * @param taggedTransmitted the bytes transmitted during the measurement for each of the tags
+     * @param callback          the callback for reached thresholds
+     */
+    void evaluate(long[] state, long nowMillis, long timeMillis, long elapsedMillis, long elapsedNanos, long bytesReceived, long bytesTransmitted, long[] taggedReceived, long[] taggedTransmitted, Callback callback) {
+        for (int w = 0; w < windows.length; w++) {
+            windows[w].add(nowMillis, elapsedMillis, delta(windowTypes[w], windowTagIndexes[w], bytesReceived, bytesTransmitted, taggedReceived, taggedTransmitted));
+        }
+        for (int k = 0; k < sums.length; k++) {
+            sums[k] = windows[sumWindows[k]].sum(nowMillis, sumMillis[k]);
+        }
+        for (int type = 0; type < TYPES.length; type++) {
+            peakRates[type].add(nowMillis, elapsedMillis, delta(type, bytesReceived, bytesTransmitted));
+        }
+        if (leadMillis > 0) {
+            estimateRates(elapsedNanos, bytesReceived, bytesTransmitted, taggedReceived, taggedTransmitted);
+        }
+
+        for (int i = 0; i < thresholds.length; i++) {
+            Threshold threshold = thresholds[i];
+            int stateIndex = stateIndexes[i];
+            if (threshold.isPeak()) {
+                // The peak is bytes in one interval, over the threshold's time span so that a
+                // burst only ends once it has been under the rate for that long.
+                long peak = peakRates[types[i]].get(nowMillis, threshold.millis);
+                if (Threshold.compareProducts(peak, threshold.millis, threshold.bytes, PeakRate.INTERVAL_MILLIS) < 0) {
+                    inBurst[i] = false;
+                } else if (!inBurst[i]) {
+                    inBurst[i] = true;
+                    callback.onReached(i, threshold, TYPES[types[i]], peak, PeakRate.INTERVAL_MILLIS);
+                }
+            } else if (stateIndex == -1) {
+                // Only count usage since this threshold was last reached, so a burst doesn't alert
+                // again on every measurement until it leaves the window.
+                SlidingWindow window = windows[sumWindows[sumIndexes[i]]];
+                long bytes = Math.min(sums[sumIndexes[i]], window.total() - resetTotals[i]);
+                if (threshold.hasReached(bytes, threshold.millis)) {
+                    // Reset before calling back, so a listener that throws can't leave it reached.
+                    resetTotals[i] = window.total();
+                    state[reachedIndexes[i]] = timeMillis;
+                    approaching[i] = false;
+                    callback.onReached(i, threshold, TYPES[types[i]], bytes, threshold.millis);
+                } else if (leadMillis > 0) {
+                    // Usage leaving the window only pushes the crossing later, so this is the
+                    // earliest it can be.
+                    double rate = estimatedRates[rateIndex(types[i], tagIndexes[i])];
+                    project(i, rate > 0 ? (threshold.bytes - bytes) / rate : Double.POSITIVE_INFINITY, rate, callback);
+                }
+            } else {
+                long bytes = state[stateIndex] += delta(types[i], tagIndexes[i], bytesReceived, bytesTransmitted, taggedReceived, taggedTransmitted);
+                long millis = state[stateIndex + 1] += elapsedMillis;
+                if (threshold.hasReached(bytes, millis)) {
+                    state[stateIndex] = 0;
+                    state[stateIndex + 1] = 0;
+                    wasReset[i] = true;
+                    approaching[i] = false;
+                    callback.onReached(i, threshold, TYPES[types[i]], bytes, millis);
+                } else if (leadMillis > 0) {
+                    double rate = estimatedRates[rateIndex(types[i], tagIndexes[i])];
+                    project(i, secondsUntilReached(threshold, bytes, millis, rate), rate, callback);
+                }
+            }
+        }
+    }
+
+    /**
+     * Refills the rolling windows from the time series, so that they carry on from the usage
+     * before this process started instead of starting over. Windows for a tag are left empty since
+     * the time series isn't kept per tag. Only called before the first measurement is evaluated.
+     *
+     * @param state      the persisted state, holding when the rolling thresholds were last reached
+     * @param timeSeries the time series to read
+     * @param nowMillis  the current time in milliseconds, on the clock measurements are timed by
+     * @param timeMillis the current time in milliseconds since the epoch
+     */
+    void restore(long[] state, UsageTimeSeries timeSeries, final long nowMillis, final long timeMillis) {
+        long longestMillis = 0;
+        for (int w = 0; w < windows.length; w++) {
+            if (windowTagIndexes[w] == -1) {
+                longestMillis = Math.max(longestMillis, windows[w].windowMillis());
+            }
+        }
+        if (longestMillis == 0) {
+            return;
+        }
+        // An hour that started before the window may still end inside it.
+        timeSeries.read(timeMillis - longestMillis - HOUR_MILLIS, timeMillis, new UsageTimeSeries.Visitor() {
+            @Override
+            public void visit(long pointMillis, long durationMillis, long bytesReceived, long bytesTransmitted) {
+                long endMillis = Math.min(pointMillis + durationMillis, timeMillis);
+                for (int w = 0; w < windows.length; w++) {
+                    if (windowTagIndexes[w] == -1) {
+                        windows[w].add(nowMillis - (timeMillis - endMillis), endMillis - pointMillis, delta(windowTypes[w], bytesReceived, bytesTransmitted));
+                    }
+                }
+            }
+        });
+        for (int i = 0; i < thresholds.length; i++) {
+            int reachedIndex = reachedIndexes[i];
+            if (reachedIndex != -1 && state[reachedIndex] != 0 && windowTagIndexes[sumWindows[sumIndexes[i]]] == -1) {
+                SlidingWindow window = windows[sumWindows[sumIndexes[i]]];
+                resetTotals[i] = window.total() - window.sum(nowMillis, Math.max(timeMillis - state[reachedIndex], 0));
+            }
+        }
+    }
+
+    /**
+     * Combines the accumulators in this process's state with those saved by other processes. Bytes
+     * are added up from what each process used since it last merged. Time is wall-clock time that
+     * processes measure side by side, so it is the longest any of them measured rather than the
+     * sum. A threshold reset here starts the saved accumulator over from this process's, and one
+     * reset by another process only gets this process's usage since then. Rolling thresholds keep
+     * the latest time any process reached them.
+     *
+     * @param saved the saved state, updated in place
+     * @param base  this process's state as of its last merge or load
+     * @param state this process's state
+     */
+    void merge(long[] saved, long[] base, long[] state) {
+        for (int i = 0; i < thresholds.length; i++) {
+            if (reachedIndexes[i] != -1) {
+                saved[reachedIndexes[i]] = Math.max(saved[reachedIndexes[i]], state[reachedIndexes[i]]);
+            }
+            int bytesIndex = stateIndexes[i];
+            if (bytesIndex == -1) {
+                continue;
+            }
+            int millisIndex = bytesIndex + 1;
+            if (wasReset[i]) {
+                saved[bytesIndex] = state[bytesIndex];
+                saved[millisIndex] = state[millisIndex];
+                wasReset[i] = false;
+            } else if (saved[millisIndex] < base[millisIndex]) {
+                saved[bytesIndex] += state[bytesIndex] - base[bytesIndex];
+                saved[millisIndex] = Math.max(saved[millisIndex], state[millisIndex] - base[millisIndex]);
+            } else {
+                saved[bytesIndex] += state[bytesIndex] - base[bytesIndex];
+                saved[millisIndex] = Math.max(saved[millisIndex], state[millisIndex]);
+            }
+        }
+    }
+
+    /**
+     * Returns the most bytes of the given type used in any one second within the given window up
+     * to now.
+     *
+     * @param type         the type of data usage
+     * @param nowMillis    the current time in milliseconds
+     * @param windowMillis the length of the window, no longer than {@link #peakWindowMillis()}
+     * @return the peak rate in bytes per second
+     */
+    long peakRate(DataUsage.Type type, long nowMillis, long windowMillis) {
+        return peakRates[type.ordinal()].get(nowMillis, windowMillis);
+    }
+
+    /**
+     * Returns the longest window the peak rate can be asked for.
+     */
+    long peakWindowMillis() {
+        return peakRates[0].windowMillis();
+    }
+
+    /**
+     * Returns the highest rate of usage as a fraction of the rate allowed by the threshold it
+     * applies to.
+     *
+     * @param elapsedNanos     the time the usage was over
+     * @param bytesReceived    the bytes received
+     * @param bytesTransmitted the bytes transmitted
+     * @return the highest fraction, 0 if no data was used
+     */
+    double maxRateRatio(long elapsedNanos, long bytesReceived, long bytesTransmitted) {
+        double seconds = Math.max(elapsedNanos, 1) / 1000000000.0;
+        double max = 0;
+        for (int i = 0; i < thresholds.length; i++) {
+            // The app's usage is an upper bound on the usage of any tag.
+            long bytes = delta(types[i], bytesReceived, bytesTransmitted);
+            if (bytes > 0 && rates[i] > 0) {
+                max = Math.max(max, bytes / seconds / rates[i]);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Folds the usage of one measurement into the estimated rates. The weight of the new rate
+     * depends on how long the measurement was, so irregular samples are weighed fairly.
+     */
+    private void estimateRates(long elapsedNanos, long bytesReceived, long bytesTransmitted, long[] taggedReceived, long[] taggedTransmitted) {
+        if (elapsedNanos <= 0) {
+            return;
+        }
+        double seconds = elapsedNanos / 1000000000.0;
+        double weight = hasEstimate ? 1 - Math.exp(-seconds / RATE_TIME_CONSTANT_SECONDS) : 1;
+        for (int type = 0; type < TYPES.length; type++) {
+            for (int tagIndex = -1; tagIndex < tags.length; tagIndex++) {
+                double rate = delta(type, tagIndex, bytesReceived, bytesTransmitted, taggedReceived, taggedTransmitted) / seconds;
+                int index = rateIndex(type, tagIndex);
+                estimatedRates[index] += weight * (rate - estimatedRates[index]);
+            }
+        }
+        hasEstimate = true;
+    }
+
+    /**
+     * Calls the callback when a threshold is first projected to be reached within the lead time.
+     */
+    private void project(int i, double secondsUntilReached, double rate, Callback callback) {
+        if (secondsUntilReached * 1000 > leadMillis) {
+            approaching[i] = false;
+        } else if (!approaching[i]) {
+            approaching[i] = true;
+            callback.onApproaching(i, thresholds[i], TYPES[types[i]], (int) Math.ceil(secondsUntilReached), (long) rate);
+        }
+    }
+
+    /**
+     * Returns how many seconds until a threshold averaged since its last alert is reached if usage
+     * continues at the given rate, or infinity if it never will be.
+     *
+     * @param threshold the threshold
+     * @param bytes     the bytes used since the threshold was last reached
+     * @param millis    the milliseconds since the threshold was last reached
+     * @param rate      the rate of usage in bytes per second
+     */
+    static double secondsUntilReached(Threshold threshold, long bytes, long millis, double rate) {
+        double seconds = millis / 1000.0;
+        // Within the threshold's time span it's reached by the amount alone.
+        double remainingSpan = (threshold.millis - millis) / 1000.0;
+        if (remainingSpan > 0 && rate > 0) {
+            double untilBytes = (threshold.bytes - bytes) / rate;
+            if (untilBytes <= remainingSpan) {
+                return untilBytes;
+            }
+        }
+        // After that the average has to reach the threshold's rate, it only gets there if usage
+        // is faster than that.
+        double thresholdRate = threshold.bytes * 1000.0 / threshold.millis;
+        if (rate <= thresholdRate) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double untilRate = (thresholdRate * seconds - bytes) / (rate - thresholdRate);
+        return Math.max(Math.max(remainingSpan, 0), untilRate);
+    }
+
+    private int rateIndex(int type, int tagIndex) {
+        return (tagIndex + 1) * TYPES.length + type;
+    }
+
+    private static long delta(int type, int tagIndex, long bytesReceived, long bytesTransmitted, long[] taggedReceived, long[] taggedTransmitted) {
+        if (tagIndex == -1) {
+            return delta(type, bytesReceived, bytesTransmitted);
+        }
+        return delta(type, taggedReceived[tagIndex], taggedTransmitted[tagIndex]);
+    }
+
+    private static long delta(int type, long bytesReceived, long bytesTransmitted) {
+        switch (TYPES[type]) {
+            case DOWNLOAD:
+                return bytesReceived;
+            case UPLOAD:
+                return bytesTransmitted;
+            default:
+                return bytesReceived + bytesTransmitted;
+        }
+    }
+
+    /**
+     * Returns the index of the key that starts with the given values, or -1.
+     */
+    private static int indexOf(List<long[]> keys, long... values) {
+        search:
+        for (int i = 0; i < keys.size(); i++) {
+            long[] key = keys.get(i);
+            for (int v = 0; v < values.length; v++) {
+                if (key[v] != values[v]) {
+                    continue search;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -1,28 +1,40 @@
 package com.willowtreeapps.trafficcop;
 
 /**
- * A time unit with the base of seconds.
+ * A time unit with the base of seconds. Thresholds keep times to the millisecond, so short bursts
+ * can be limited with {@link #MILLISECONDS}.
  */
 public enum TimeUnit {
-    SECOND(1), SECONDS(1),
-    MINUTE(60), MINUTES(60),
-    HOUR(60 * 60), HOURS(60 * 60),
-    DAY(60 * 60 * 24), DAYS(60 * 60 * 24),
-    WEEK(60 * 60 * 24 * 7), WEEKS(60 * 60 * 24 * 7);
+    MILLISECOND(1), MILLISECONDS(1),
+    SECOND(1000), SECONDS(1000),
+    MINUTE(1000 * 60), MINUTES(1000 * 60),
+    HOUR(1000 * 60 * 60), HOURS(1000 * 60 * 60),
+    DAY(1000 * 60 * 60 * 24), DAYS(1000 * 60 * 60 * 24),
+    WEEK(1000 * 60 * 60 * 24 * 7), WEEKS(1000 * 60 * 60 * 24 * 7);
 
-    private int scale;
+    private long millis;
 
-    TimeUnit(int scale) {
-        this.scale = scale;
+    TimeUnit(long millis) {
+        this.millis = millis;
     }
 
     /**
-     * Converts the value from this unit to seconds
+     * Converts the value from this unit to seconds, rounding down.
      *
      * @param value the time in this unit
      * @return the time in seconds
      */
     public int of(int value) {
-        return value * scale;
+        return (int) (value * millis / 1000);
+    }
+
+    /**
+     * Converts the value from this unit to milliseconds.
+     *
+     * @param value the time in this unit
+     * @return the time in milliseconds
+     */
+    public long toMillis(long value) {
+        return value * millis;
     }
 }
@@ -2,61 +2,278 @@ package com.willowtreeapps.trafficcop;
 
 import android.app.Activity;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.net.TrafficStats;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
+import java.io.Closeable;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * A simple way to get detect data usage over a threshold.
  */
 public class TrafficCop {
-    private static final List<String> TRAFFIC_COP_IDS = new ArrayList<String>();
-    private static final String SHARED_PREFS_NAME = TrafficCop.class.getCanonicalName() + "_shared_prefs";
-    private static final String PREFS_ELAPSED_SECONDS_DOWNLOAD = "elapsed_second_upload";
-    private static final String PREFS_ELAPSED_SECONDS_UPLOAD = "elapsed_second_upload";
-    private static final String PREFS_DOWNLOAD_BYTES = "download_bytes";
-    private static final String PREFS_UPLOAD_BYTES = "upload_bytes";
-
-    private long startTime = -1;
-    private long bytesTransmitted = -1;
-    private long bytesReceived = -1;
+    private static final String TAG = "TrafficCop";
+    private static final Set<String> TRAFFIC_COP_IDS = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Counted down once a destroyed TrafficCop has cleared its files, by id.
+    private static final ConcurrentHashMap<String, CountDownLatch> PENDING_DESTROYS = new ConcurrentHashMap<String, CountDownLatch>();
+    private static final String JOURNAL_NAME = TrafficCop.class.getCanonicalName() + "_journal_";
+    private static final String TIME_SERIES_NAME = TrafficCop.class.getCanonicalName() + "_time_series_";
+    private static final long STATE_VERSION = 4;
+    private static final int STATE_INDEX_VERSION = 0;
+    private static final int STATE_INDEX_THRESHOLDS = 1;
+    private static final int POOL_SIZE = 16;
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10 * 1000;
+    private static final long DEFAULT_PEAK_RATE_WINDOW_MILLIS = 5 * 60 * 1000;
+    // Scratch space for reading the counters, any thread may start or stop measuring.
+    private static final ThreadLocal<UsageSnapshot> SNAPSHOT = new ThreadLocal<UsageSnapshot>() {
+        @Override
+        protected UsageSnapshot initialValue() {
+            return new UsageSnapshot();
+        }
+    };
+
+    private final AtomicReference<Measurement> measurement = new AtomicReference<Measurement>(Measurement.idle());
+    private final Pool<Session> sessionPool = new Pool<Session>(POOL_SIZE);
+    private final Pool<Evaluation> evaluationPool = new Pool<Evaluation>(POOL_SIZE);
     private final String id;
-    private final List<DataUsageAlertListener> dataUsageAlertListeners;
-    private final Threshold downloadWarningThreshold;
-    private final Threshold uploadWarningThreshold;
+    // Copied on write so that alerting never locks.
+    private volatile AlertRegistration[] alertRegistrations;
+    private final Object alertRegistrationsLock = new Object();
+    private final long alertCooldownNanos;
+    // The time each threshold last alerted, only touched on the executor.
+    private final long[] lastAlertNanos;
+    private final DataUsageProjectionListener[] projectionListeners;
+    private final ThresholdSet thresholds;
+    private final Metrics metrics;
+    private final UsageHistory history = new UsageHistory();
+    // Created with the store if none was given.
+    private UsageTimeSeries timeSeries;
+    private boolean ownsTimeSeries;
+    private boolean areWindowsRestored;
     private final DataUsageStatsProvider dataUsageStatsProvider;
-    private final SharedPreferences prefs;
+    private final Quota downloadQuota;
+    private final Quota uploadQuota;
+    private final Quota totalQuota;
+    // Reading tagged usage is a file read, so it is done on the executor: the totals as of the last
+    // read, and the change since, are only touched there.
+    private final IntLongMap taggedBytesReceived;
+    private final IntLongMap taggedBytesTransmitted;
+    private final long[] taggedReceivedBaseline;
+    private final long[] taggedTransmittedBaseline;
+    private final long[] taggedReceivedDelta;
+    private final long[] taggedTransmittedDelta;
+    private final Context context;
+    // Opening the store touches the disk, so it is created and loaded on the executor.
+    private UsageStore usageStore;
+    private final long[] state;
+    // The state as of the last load or merge, for working out what changed since.
+    private final long[] mergeBase;
+    private boolean isStateLoaded;
+    // The clearing up of a destroyed TrafficCop with the same id, which loading waits for.
+    private final CountDownLatch previousDestroy;
+    // Saving is written behind, these are only touched on the executor.
+    private final long flushIntervalNanos;
+    private long lastSaveNanos;
+    private boolean isStateDirty;
+    private boolean isFlushScheduled;
+    // The owned executor, or a timer thread started for the first flush when one was given.
+    private ScheduledExecutorService flushScheduler;
+    private ScheduledFuture<?> scheduledFlushFuture;
+    private final UsageSampler sampler;
+    private final Executor executor;
+    private final ScheduledExecutorService ownedExecutor;
     private Application application;
     private Application.ActivityLifecycleCallbacks activityLifecycleCallbacks;
-    private boolean isDestroyed;
+    private ComponentCallbacks2 componentCallbacks;
+    private final boolean measureInBackground;
+    // Only touched on the main thread, by the lifecycle callbacks and register()/unregister().
+    private int startedActivities;
+    private boolean isMeasuringApp;
+    private volatile boolean isDestroyed;
+
+    private final ThresholdSet.Callback alertCallback = new ThresholdSet.Callback() {
+        @Override
+        public void onReached(int index, Threshold threshold, DataUsage.Type type, long bytes, long millis) {
+            metrics.recordAlert(index);
+            if (alertCooldownNanos > 0) {
+                // Alerts within the cooldown are coalesced into the one that started it.
+                long nowNanos = dataUsageStatsProvider.getNanoTime();
+                if (lastAlertNanos[index] != Long.MIN_VALUE && nowNanos - lastAlertNanos[index] < alertCooldownNanos) {
+                    return;
+                }
+                lastAlertNanos[index] = nowNanos;
+            }
+            // Only primitive listeners means nothing is allocated to alert them.
+            DataUsage usage = null;
+            AlertRegistration[] registrations = alertRegistrations;
+            for (int i = 0; i < registrations.length; i++) {
+                AlertRegistration registration = registrations[i];
+                if (usage == null && registration.listener != null) {
+                    usage = new DataUsage(type, bytes, millis, threshold.tag);
+                }
+                registration.alert(threshold, type, bytes, millis, usage);
+            }
+        }
+
+        @Override
+        public void onApproaching(int index, Threshold threshold, DataUsage.Type type, int secondsUntilReached, long bytesPerSecond) {
+            for (int i = 0; i < projectionListeners.length; i++) {
+                try {
+                    projectionListeners[i].thresholdApproaching(threshold, type, secondsUntilReached, bytesPerSecond);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Projection listener failed", e);
+                }
+            }
+        }
+    };
+
+    private final UsageStore.Merger merger = new UsageStore.Merger() {
+        @Override
+        public void merge(long[] saved, long[] state) {
+            if (saved[STATE_INDEX_VERSION] != STATE_VERSION) {
+                System.arraycopy(state, 0, saved, 0, state.length);
+            } else {
+                thresholds.merge(saved, mergeBase, state);
+            }
+        }
+    };
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            isFlushScheduled = false;
+            if (isStateDirty) {
+                save();
+            }
+        }
+    };
+
+    private final Runnable checkpointTask = new Runnable() {
+        @Override
+        public void run() {
+            if (isStateDirty) {
+                save();
+            }
+            if (timeSeries != null) {
+                timeSeries.flush();
+            }
+        }
+    };
 
-    private TrafficCop(Context context, String id, List<DataUsageAlertListener> dataUsageAlertListeners, Threshold downloadWarningThreshold, Threshold uploadWarningThreshold, DataUsageStatsProvider dataUsageStatsProvider) {
+    private final Runnable loadTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!isStateLoaded) {
+                loadState();
+            }
+        }
+    };
+
+    private final Runnable taggedBaselineTask = new Runnable() {
+        @Override
+        public void run() {
+            readTaggedBytes();
+        }
+    };
+
+    private final Runnable scheduledFlush = new Runnable() {
+        @Override
+        public void run() {
+            if (!isDestroyed) {
+                executor.execute(flushTask);
+            }
+        }
+    };
+
+    private TrafficCop(Context context, final String id, Builder builder) {
         this.id = id;
-        this.dataUsageStatsProvider = dataUsageStatsProvider;
-        this.dataUsageAlertListeners = dataUsageAlertListeners;
-        this.downloadWarningThreshold = downloadWarningThreshold;
-        this.uploadWarningThreshold = uploadWarningThreshold;
-        this.prefs = context.getSharedPreferences(SHARED_PREFS_NAME + id, Context.MODE_PRIVATE);
+        this.context = context;
+        this.previousDestroy = PENDING_DESTROYS.get(id);
+        this.dataUsageStatsProvider = builder.dataUsageStatsProvider;
+        this.alertRegistrations = builder.alertRegistrations.toArray(new AlertRegistration[builder.alertRegistrations.size()]);
+        this.projectionListeners = builder.projectionListeners.toArray(new DataUsageProjectionListener[builder.projectionListeners.size()]);
+        this.thresholds = builder.createThresholdSet(STATE_INDEX_THRESHOLDS);
+        this.state = new long[STATE_INDEX_THRESHOLDS + thresholds.stateLength()];
+        this.mergeBase = new long[state.length];
+        this.alertCooldownNanos = builder.alertCooldownMillis * 1000000;
+        this.lastAlertNanos = new long[thresholds.size()];
+        Arrays.fill(lastAlertNanos, Long.MIN_VALUE);
+        this.metrics = new Metrics(thresholds);
+        this.downloadQuota = new Quota(builder.strictestThreshold(DataUsage.Type.DOWNLOAD), dataUsageStatsProvider);
+        this.uploadQuota = new Quota(builder.strictestThreshold(DataUsage.Type.UPLOAD), dataUsageStatsProvider);
+        this.totalQuota = new Quota(builder.strictestThreshold(DataUsage.Type.TOTAL), dataUsageStatsProvider);
+        int tagCount = thresholds.tags().length;
+        this.taggedBytesReceived = new IntLongMap(tagCount);
+        this.taggedBytesTransmitted = new IntLongMap(tagCount);
+        this.taggedReceivedBaseline = new long[tagCount];
+        this.taggedTransmittedBaseline = new long[tagCount];
+        this.taggedReceivedDelta = new long[tagCount];
+        this.taggedTransmittedDelta = new long[tagCount];
+        this.timeSeries = builder.timeSeries;
+        this.flushIntervalNanos = builder.flushIntervalMillis * 1000000;
+        this.measureInBackground = builder.measureInBackground;
+        this.lastSaveNanos = System.nanoTime();
+        this.usageStore = builder.usageStore;
+        this.sampler = builder.minSamplingIntervalMillis > 0
+                ? new UsageSampler(this, builder.minSamplingIntervalMillis, builder.maxSamplingIntervalMillis, thresholds)
+                : null;
+
+        if (builder.executor != null) {
+            this.ownedExecutor = null;
+            this.executor = new SerialExecutor(builder.executor);
+        } else {
+            this.ownedExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TrafficCop-" + id);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.executor = ownedExecutor;
+            this.flushScheduler = ownedExecutor;
+        }
+        // Load ahead of the first measurement so the calling thread, usually during app startup,
+        // never waits for the disk. Measuring can start before this finishes: baselines are only
+        // kept in memory and are checked against the state once it's loaded.
+        executor.execute(loadTask);
     }
 
     /**
      * Starts measuring data usage. If you are using
      * {@link TrafficCop#register(android.app.Application)} then you don't need to call this.
+     * Calls nest, so this is safe to call from many threads: measuring continues until
+     * {@link #stopMeasuring()} has been called once for each call to this method.
      */
     public void startMeasuring() {
         if (isDestroyed) {
             throw new IllegalStateException("The TrafficCop has been destroyed.");
         }
-
-        startTime = dataUsageStatsProvider.getNanoTime();
-        bytesTransmitted = dataUsageStatsProvider.getBytesTransmitted();
-        bytesReceived = dataUsageStatsProvider.getBytesReceived();
+        begin();
     }
 
     /**
@@ -68,63 +285,510 @@ public class TrafficCop {
         if (isDestroyed) {
             throw new IllegalStateException("The TrafficCop has been destroyed.");
         }
+        end();
+    }
 
-        if (startTime == -1) {
-            return;
+    /**
+     * <p>
+     * Begins a measurement session, for example for one download. Sessions may be nested or
+     * overlap each other and {@link #startMeasuring()}, the data usage is measured while any of
+     * them are open and checked against the thresholds once the last one is closed. Usage during
+     * overlapping sessions is only counted once.</p>
+     * <p>
+     * Sessions are recycled, so close each one exactly once and don't keep a reference to it
+     * afterwards: once it's been handed out again, closing it again would end someone else's
+     * session.</p>
+     * <pre>{@code
+     * TrafficCop.Session session = trafficCop.beginSession();
+     * try {
+     *     // download
+     * } finally {
+     *     session.close();
+     * }
+     * }</pre>
+     *
+     * @return the session
+     */
+    public Session beginSession() {
+        if (isDestroyed) {
+            throw new IllegalStateException("The TrafficCop has been destroyed.");
+        }
+        Session session = sessionPool.acquire();
+        if (session == null) {
+            session = new Session(this);
         }
+        begin();
+        session.isOpen.set(true);
+        return session;
+    }
 
-        int elapsedTime = (int) ((dataUsageStatsProvider.getNanoTime() - startTime) / 1000000000);
-        long receivedDelta = dataUsageStatsProvider.getBytesReceived() - bytesReceived;
-        long transmittedDelta = dataUsageStatsProvider.getBytesTransmitted() - bytesTransmitted;
+    /**
+     * Returns the quota for the given type of data usage, a token bucket that refills at the rate
+     * of the strictest threshold for that type. Thresholds for a tag aren't included. If there are
+     * no thresholds for the type the quota is unlimited. Usage is charged to the quota whenever it
+     * is measured.
+     *
+     * @param type the type of data usage
+     * @return the quota
+     */
+    public Quota getQuota(DataUsage.Type type) {
+        if (type == null) {
+            throw new IllegalArgumentException("type cannot be null");
+        }
+        switch (type) {
+            case DOWNLOAD:
+                return downloadQuota;
+            case UPLOAD:
+                return uploadQuota;
+            default:
+                return totalQuota;
+        }
+    }
 
-        int elapsedTimeDownload = elapsedTime + prefs.getInt(PREFS_ELAPSED_SECONDS_DOWNLOAD, 0);
-        int elapsedTimeUpload = elapsedTime + prefs.getInt(PREFS_ELAPSED_SECONDS_UPLOAD, 0);
-        receivedDelta += prefs.getLong(PREFS_DOWNLOAD_BYTES, 0);
-        transmittedDelta += prefs.getLong(PREFS_UPLOAD_BYTES, 0);
+    /**
+     * Returns the metrics of what this TrafficCop has measured and what measuring has cost.
+     *
+     * @return the metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
 
-        DataUsage downloadUsage = new DataUsage(DataUsage.Type.DOWNLOAD, receivedDelta, elapsedTimeDownload);
-        DataUsage uploadUsage = new DataUsage(DataUsage.Type.UPLOAD, transmittedDelta, elapsedTimeUpload);
+    /**
+     * Returns the data usage measured in the given range of wall clock time. Unlike the usage
+     * checked against thresholds this isn't reset by alerts, but only recent history is kept: see
+     * {@link UsageHistory} for how long and at what resolution. Usage is recorded at the time it
+     * was measured, so when sampling isn't enabled all the usage while measuring is recorded when
+     * it stopped. The history is read back from the {@link Builder#timeSeries(UsageTimeSeries)
+     * time series} when the TrafficCop is created, so usage from before the app restarted is only
+     * kept to the minute.
+     *
+     * @param fromMillis the start of the range in milliseconds since the epoch, inclusive
+     * @param toMillis   the end of the range in milliseconds since the epoch, exclusive
+     * @param type       the type of data usage
+     * @return the data usage
+     */
+    public DataUsage getUsage(long fromMillis, long toMillis, DataUsage.Type type) {
+        return history.getUsage(fromMillis, toMillis, type);
+    }
+
+    /**
+     * Returns the most data used in any one second of the given window up to now, to spot bursts
+     * that an average hides. Usage is spread evenly over the time it was measured in, so enable
+     * {@link Builder#samplingInterval(int, int, TimeUnit)} to see bursts within long measurements.
+     *
+     * @param type   the type of data usage
+     * @param window the length of the window in the given unit, no longer than the
+     *               {@link Builder#peakRateWindow(int, TimeUnit) peak rate window}
+     * @param unit   the unit the window is given in
+     * @return the peak rate in bytes per second
+     */
+    public long getPeakRate(DataUsage.Type type, int window, TimeUnit unit) {
+        if (type == null) {
+            throw new IllegalArgumentException("type cannot be null");
+        }
+        long windowMillis = unit.toMillis(window);
+        if (windowMillis <= 0 || windowMillis > thresholds.peakWindowMillis()) {
+            throw new IllegalArgumentException("window must be positive and no longer than the peak rate window");
+        }
+        return thresholds.peakRate(type, dataUsageStatsProvider.getNanoTime() / 1000000, windowMillis);
+    }
+
+    /**
+     * Returns if the TrafficCop is currently measuring.
+     */
+    boolean isMeasuring() {
+        Measurement current = measurement.get();
+        return !current.isIdle() && current.depth.get() > 0;
+    }
 
-        boolean hasWarnedDownload = false;
-        if (downloadWarningThreshold.hasReached(downloadUsage)) {
-            hasWarnedDownload = true;
-            for (DataUsageAlertListener adapter : dataUsageAlertListeners) {
-                adapter.alertThreshold(downloadWarningThreshold, downloadUsage);
+    /**
+     * Measures the data usage so far without stopping, called periodically by the
+     * {@link UsageSampler} and when the app goes to the background while measuring in the
+     * background.
+     *
+     * @return true if a sample was taken, false if the TrafficCop isn't measuring
+     */
+    boolean sample() {
+        Measurement current = measurement.get();
+        if (isDestroyed || current.isIdle() || current.depth.get() == 0) {
+            return false;
+        }
+        long elapsedNanos;
+        long receivedDelta;
+        long transmittedDelta;
+        synchronized (current) {
+            if (measurement.get() != current) {
+                // Finished while waiting for the lock.
+                return false;
             }
+            UsageSnapshot end = readSnapshot();
+            // The time baseline only moves by whole milliseconds so that frequent samples don't
+            // lose the remainders, which are counted by the next sample instead.
+            elapsedNanos = (end.getNanoTime() - current.startTime) / 1000000 * 1000000;
+            receivedDelta = end.getBytesReceived() - current.bytesReceived;
+            transmittedDelta = end.getBytesTransmitted() - current.bytesTransmitted;
+            measure(current, end, elapsedNanos);
+            current.startTime += elapsedNanos;
+            current.bytesReceived = end.getBytesReceived();
+            current.bytesTransmitted = end.getBytesTransmitted();
+        }
+        if (sampler != null) {
+            sampler.onSample(elapsedNanos, receivedDelta, transmittedDelta);
         }
+        return true;
+    }
 
-        boolean hasWarnedUpload = false;
-        if (uploadWarningThreshold.hasReached(uploadUsage)) {
-            hasWarnedUpload = true;
-            for (DataUsageAlertListener adapter : dataUsageAlertListeners) {
-                adapter.alertThreshold(uploadWarningThreshold, uploadUsage);
+    /**
+     * Adds one to the measuring depth, taking a baseline if measuring wasn't already in progress.
+     * Nesting only touches the depth counter, so it doesn't allocate.
+     */
+    private void begin() {
+        for (; ; ) {
+            Measurement current = measurement.get();
+            if (current.isIdle()) {
+                // Swapping out this exact idle marker fails if a whole measurement started and
+                // ended since it was read, which would make this baseline too early.
+                UsageSnapshot start = readSnapshot();
+                Measurement next = new Measurement(new AtomicInteger(1), start.getNanoTime(),
+                        start.getBytesReceived(), start.getBytesTransmitted());
+                if (measurement.compareAndSet(current, next)) {
+                    if (thresholds.tags().length > 0) {
+                        // Tagged usage is only counted from here, read on the executor so that
+                        // starting doesn't wait for the file.
+                        executor.execute(taggedBaselineTask);
+                    }
+                    if (sampler != null) {
+                        sampler.start();
+                    }
+                    return;
+                }
+                continue;
+            }
+            int depth = current.depth.get();
+            if (depth == 0) {
+                // The last caller is finishing this measurement, the next one can only start with
+                // a baseline after its end so that no bytes are counted twice.
+                Thread.yield();
+                continue;
+            }
+            if (current.depth.compareAndSet(depth, depth + 1)) {
+                return;
             }
         }
+    }
 
-        SharedPreferences.Editor editor = prefs.edit();
+    /**
+     * Subtracts one from the measuring depth, measuring the usage once it reaches zero.
+     */
+    private void end() {
+        long startNanos = System.nanoTime();
+        try {
+            for (; ; ) {
+                Measurement current = measurement.get();
+                if (current.isIdle()) {
+                    return;
+                }
+                int depth = current.depth.get();
+                if (depth == 0) {
+                    // Already being finished by another caller.
+                    return;
+                }
+                if (current.depth.compareAndSet(depth, depth - 1)) {
+                    if (depth == 1) {
+                        finish();
+                    }
+                    return;
+                }
+            }
+        } finally {
+            metrics.recordStopMeasuring(System.nanoTime() - startNanos);
+        }
+    }
 
-        if (hasWarnedDownload) {
-            editor.remove(PREFS_DOWNLOAD_BYTES);
-            editor.remove(PREFS_ELAPSED_SECONDS_DOWNLOAD);
-        } else {
-            editor.putInt(PREFS_ELAPSED_SECONDS_DOWNLOAD, elapsedTimeDownload);
-            editor.putLong(PREFS_DOWNLOAD_BYTES, receivedDelta);
+    /**
+     * Ends the current measurement, which nobody else can join once its depth is zero. The end is
+     * read before the swap so that the next baseline comes after it, and under the measurement's
+     * lock so that a sample can't move the baseline past it in between.
+     */
+    private void finish() {
+        Measurement current = measurement.get();
+        synchronized (current) {
+            UsageSnapshot end = readSnapshot();
+            measurement.set(Measurement.idle());
+            measure(current, end, end.getNanoTime() - current.startTime);
+        }
+        if (sampler != null) {
+            sampler.stop();
         }
+    }
 
-        if (hasWarnedUpload) {
-            editor.remove(PREFS_UPLOAD_BYTES);
-            editor.remove(PREFS_ELAPSED_SECONDS_UPLOAD);
+    private void recycle(Session session) {
+        sessionPool.release(session);
+    }
+
+    /**
+     * Reads the current counters from the provider into this thread's snapshot.
+     */
+    private UsageSnapshot readSnapshot() {
+        UsageSnapshot snapshot = SNAPSHOT.get();
+        UsageSnapshot.read(dataUsageStatsProvider, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Takes the usage between a baseline and a reading and hands it to the executor to be checked
+     * against the thresholds. Tagged usage is read once it gets there. The elapsed time is the
+     * amount the baseline moves by, which for a sample can be a little short of the reading.
+     */
+    private void measure(Measurement start, UsageSnapshot end, long elapsedNanos) {
+        Evaluation evaluation = evaluationPool.acquire();
+        if (evaluation == null) {
+            evaluation = new Evaluation();
+        }
+        evaluation.nowMillis = end.getNanoTime() / 1000000;
+        evaluation.timeMillis = System.currentTimeMillis();
+        evaluation.elapsedNanos = elapsedNanos;
+        evaluation.elapsedMillis = evaluation.elapsedNanos / 1000000;
+        evaluation.receivedDelta = end.getBytesReceived() - start.bytesReceived;
+        evaluation.transmittedDelta = end.getBytesTransmitted() - start.bytesTransmitted;
+        downloadQuota.charge(evaluation.receivedDelta);
+        uploadQuota.charge(evaluation.transmittedDelta);
+        totalQuota.charge(evaluation.receivedDelta + evaluation.transmittedDelta);
+        executor.execute(evaluation);
+    }
+
+    /**
+     * Reads the total bytes so far for each of the tags the thresholds apply to, keeping the change
+     * since the last read. Only ever run on the executor, so tagged usage is counted from when the
+     * executor gets to the start and end of a measurement, a little after the calling thread.
+     */
+    private void readTaggedBytes() {
+        int[] tags = thresholds.tags();
+        if (tags.length == 0) {
+            return;
+        }
+        ((TaggedDataUsageStatsProvider) dataUsageStatsProvider).getTaggedBytes(taggedBytesReceived, taggedBytesTransmitted);
+        for (int t = 0; t < tags.length; t++) {
+            long received = taggedBytesReceived.get(tags[t]);
+            long transmitted = taggedBytesTransmitted.get(tags[t]);
+            taggedReceivedDelta[t] = received - taggedReceivedBaseline[t];
+            taggedTransmittedDelta[t] = transmitted - taggedTransmittedBaseline[t];
+            taggedReceivedBaseline[t] = received;
+            taggedTransmittedBaseline[t] = transmitted;
+        }
+    }
+
+    /**
+     * Accumulates the usage, checks it against the thresholds, persists it and alerts the
+     * listeners. This is only ever run on the executor, one at a time.
+     */
+    private void evaluate(long nowMillis, long timeMillis, long elapsedMillis, long elapsedNanos, long receivedDelta, long transmittedDelta) {
+        if (!isStateLoaded) {
+            loadState();
+        }
+        if (!areWindowsRestored) {
+            areWindowsRestored = true;
+            if (timeSeries != null) {
+                thresholds.restore(state, timeSeries, nowMillis, timeMillis);
+            }
+        }
+
+        readTaggedBytes();
+        metrics.recordMeasurement(elapsedNanos, receivedDelta, transmittedDelta);
+        history.add(timeMillis, receivedDelta, transmittedDelta);
+        if (timeSeries != null) {
+            timeSeries.add(timeMillis, receivedDelta, transmittedDelta);
+        }
+        thresholds.evaluate(state, nowMillis, timeMillis, elapsedMillis, elapsedNanos, receivedDelta, transmittedDelta, taggedReceivedDelta, taggedTransmittedDelta, alertCallback);
+
+        if (thresholds.stateLength() > 0) {
+            isStateDirty = true;
+            long sinceSave = System.nanoTime() - lastSaveNanos;
+            if (sinceSave >= flushIntervalNanos) {
+                save();
+            } else if (!isFlushScheduled && !isDestroyed) {
+                isFlushScheduled = true;
+                if (flushScheduler == null) {
+                    flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "TrafficCop-flush-" + id);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+                scheduledFlushFuture = flushScheduler.schedule(scheduledFlush, (flushIntervalNanos - sinceSave) / 1000000 + 1, MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Loads the state, creating the default store and time series first if none were given. Only
+     * ever run on the executor.
+     */
+    private void loadState() {
+        if (previousDestroy != null) {
+            // Otherwise its clear could delete the files this one has just opened.
+            try {
+                previousDestroy.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (usageStore == null) {
+            usageStore = new JournalUsageStore(new File(context.getFilesDir(), JOURNAL_NAME + id));
+        }
+        if (timeSeries == null) {
+            timeSeries = new UsageTimeSeries(new File(context.getFilesDir(), TIME_SERIES_NAME + id));
+            ownsTimeSeries = true;
+        }
+        // The history and rolling windows carry on from the time series after a restart.
+        history.load(timeSeries, System.currentTimeMillis());
+        if (!usageStore.load(state) || state[STATE_INDEX_VERSION] != STATE_VERSION) {
+            Arrays.fill(state, 0);
+            state[STATE_INDEX_VERSION] = STATE_VERSION;
+        }
+        System.arraycopy(state, 0, mergeBase, 0, state.length);
+        isStateLoaded = true;
+    }
+
+    /**
+     * Saves the state, only ever run on the executor. A shared store is merged with instead, which
+     * also brings in the usage other processes saved.
+     */
+    private void save() {
+        long startNanos = System.nanoTime();
+        if (usageStore.isShared()) {
+            usageStore.merge(state, merger);
+            System.arraycopy(state, 0, mergeBase, 0, state.length);
         } else {
-            editor.putLong(PREFS_UPLOAD_BYTES, transmittedDelta);
-            editor.putInt(PREFS_ELAPSED_SECONDS_UPLOAD, elapsedTimeUpload);
+            usageStore.save(state);
+        }
+        lastSaveNanos = System.nanoTime();
+        isStateDirty = false;
+        metrics.recordPersist(lastSaveNanos - startNanos);
+    }
+
+    /**
+     * Adds a listener that will be called when your app's data usage goes over a threshold. The
+     * listener is called on the TrafficCop's executor. Listeners can be added and removed from any
+     * thread, including from inside a listener.
+     *
+     * @param listener the listener to add
+     * @see Builder#alert(DataUsageAlertListener...)
+     */
+    public void addListener(DataUsageAlertListener listener) {
+        addListener(null, listener);
+    }
+
+    /**
+     * Adds a listener that will be called on the given executor when your app's data usage goes
+     * over a threshold.
+     *
+     * @param executor the executor to call the listener on, or null to call it on the
+     *                 TrafficCop's executor
+     * @param listener the listener to add
+     */
+    public void addListener(Executor executor, DataUsageAlertListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener cannot be null");
         }
+        addRegistration(new AlertRegistration(listener, null, executor));
+    }
 
-        editor.apply();
+    /**
+     * Adds a listener that is given the data usage as primitives. The listener is called on the
+     * TrafficCop's executor.
+     *
+     * @param listener the listener to add
+     */
+    public void addListener(PrimitiveDataUsageAlertListener listener) {
+        addListener(null, listener);
+    }
+
+    /**
+     * Adds a listener that is given the data usage as primitives, called on the given executor.
+     *
+     * @param executor the executor to call the listener on, or null to call it on the
+     *                 TrafficCop's executor
+     * @param listener the listener to add
+     */
+    public void addListener(Executor executor, PrimitiveDataUsageAlertListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener cannot be null");
+        }
+        addRegistration(new AlertRegistration(null, listener, executor));
+    }
+
+    /**
+     * Removes a listener, whether it was added to the builder or with
+     * {@link #addListener(DataUsageAlertListener)}. Alerts already handed to the listener's
+     * executor may still be delivered.
+     *
+     * @param listener the listener to remove
+     * @return true if the listener was registered
+     */
+    public boolean removeListener(DataUsageAlertListener listener) {
+        return removeRegistration(listener);
+    }
+
+    /**
+     * Removes a primitive listener, whether it was added to the builder or with
+     * {@link #addListener(PrimitiveDataUsageAlertListener)}.
+     *
+     * @param listener the listener to remove
+     * @return true if the listener was registered
+     */
+    public boolean removeListener(PrimitiveDataUsageAlertListener listener) {
+        return removeRegistration(listener);
+    }
+
+    private void addRegistration(AlertRegistration registration) {
+        synchronized (alertRegistrationsLock) {
+            AlertRegistration[] current = alertRegistrations;
+            AlertRegistration[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = registration;
+            alertRegistrations = updated;
+        }
+    }
+
+    private boolean removeRegistration(Object listener) {
+        synchronized (alertRegistrationsLock) {
+            AlertRegistration[] current = alertRegistrations;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].listener == listener || current[i].primitiveListener == listener) {
+                    AlertRegistration[] updated = new AlertRegistration[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    alertRegistrations = updated;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Saves the usage measured so far now instead of waiting for the flush interval. If you are
+     * using {@link #register(android.app.Application)} this is called for you when the app goes
+     * to the background or the system is low on memory.
+     *
+     * @see Builder#flushInterval(int, TimeUnit)
+     */
+    public void flush() {
+        if (isDestroyed) {
+            throw new IllegalStateException("The TrafficCop has been destroyed.");
+        }
+        executor.execute(checkpointTask);
     }
 
     /**
      * Register the TrafficCop to the activity lifecycle. If you call this, you don't need to call
-     * {@link #stopMeasuring()}/{@link #startMeasuring()}.
+     * {@link #stopMeasuring()}/{@link #startMeasuring()}. Usage is measured from when the app's
+     * first activity starts until its last one stops, as one measurement however many activities
+     * are shown in between, or all the time with {@link Builder#measureInBackground(boolean)}.
      *
      * @param application the application context.
      */
@@ -142,22 +806,36 @@ public class TrafficCop {
 
             @Override
             public void onActivityStarted(Activity activity) {
-
+                // The next activity starts before the previous one stops, so moving between them
+                // doesn't end the measurement.
+                if (startedActivities++ == 0 && !measureInBackground) {
+                    isMeasuringApp = true;
+                    startMeasuring();
+                }
             }
 
             @Override
             public void onActivityResumed(Activity activity) {
-                startMeasuring();
+
             }
 
             @Override
             public void onActivityPaused(Activity activity) {
-                stopMeasuring();
+
             }
 
             @Override
             public void onActivityStopped(Activity activity) {
-
+                if (startedActivities == 0 || --startedActivities > 0) {
+                    return;
+                }
+                if (measureInBackground) {
+                    // Check the usage so far, measuring goes on.
+                    sample();
+                } else if (isMeasuringApp) {
+                    isMeasuringApp = false;
+                    stopMeasuring();
+                }
             }
 
             @Override
@@ -170,6 +848,31 @@ public class TrafficCop {
 
             }
         });
+        application.registerComponentCallbacks(componentCallbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // Also called with TRIM_MEMORY_UI_HIDDEN when the app goes to the background.
+                if (!isDestroyed) {
+                    flush();
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                if (!isDestroyed) {
+                    flush();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+
+            }
+        });
+        if (measureInBackground) {
+            isMeasuringApp = true;
+            startMeasuring();
+        }
     }
 
     /**
@@ -179,50 +882,207 @@ public class TrafficCop {
     public void unregister() {
         if (activityLifecycleCallbacks != null) {
             application.unregisterActivityLifecycleCallbacks(activityLifecycleCallbacks);
+            application.unregisterComponentCallbacks(componentCallbacks);
             activityLifecycleCallbacks = null;
+            componentCallbacks = null;
             application = null;
+            startedActivities = 0;
+            if (isMeasuringApp) {
+                isMeasuringApp = false;
+                if (!isDestroyed) {
+                    stopMeasuring();
+                }
+            }
         }
     }
 
     /**
      * Destroys the TrafficCop. You cannot call any other methods on this traffic cop after calling
-     * this method, but you are now free to create another one with the same id.
+     * this method, but you are now free to create another one with the same id. It loads its usage
+     * once this one has finished clearing its own.
      */
     public void destroy() {
         isDestroyed = true;
+        if (sampler != null) {
+            sampler.shutdown();
+        }
+        // The id can be reused right away, a new TrafficCop waits for this one's files to be cleared
+        // before loading its own.
+        final CountDownLatch cleared = new CountDownLatch(1);
+        PENDING_DESTROYS.put(id, cleared);
         TRAFFIC_COP_IDS.remove(id);
-        prefs.edit().clear().apply();
+        // Clear on the executor so that usage still being evaluated isn't written back afterwards.
+        // Shared usage belongs to the other processes too, so only this one's is saved.
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    clear();
+                } finally {
+                    PENDING_DESTROYS.remove(id, cleared);
+                    cleared.countDown();
+                }
+            }
+
+            private void clear() {
+                if (scheduledFlushFuture != null) {
+                    scheduledFlushFuture.cancel(false);
+                }
+                if (flushScheduler != null && flushScheduler != ownedExecutor) {
+                    flushScheduler.shutdown();
+                }
+                if (!usageStore.isShared()) {
+                    usageStore.clear();
+                } else if (isStateDirty) {
+                    save();
+                }
+                if (ownsTimeSeries) {
+                    timeSeries.clear();
+                } else if (timeSeries != null) {
+                    timeSeries.flush();
+                }
+            }
+        });
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
         unregister();
     }
 
+    /**
+     * Returns an executor that runs tasks on the main thread, for use with
+     * {@link Builder#alert(Executor, DataUsageAlertListener...)} when your listeners need to update
+     * the ui.
+     *
+     * @return the main thread executor
+     */
+    public static Executor mainThreadExecutor() {
+        return MainThreadExecutor.INSTANCE;
+    }
+
     /**
      * Constructs a new TrafficCop.
      */
     public static class Builder {
-        private final List<DataUsageAlertListener> adapters = new ArrayList<DataUsageAlertListener>();
+        private final List<AlertRegistration> alertRegistrations = new ArrayList<AlertRegistration>();
+        private final List<DataUsageProjectionListener> projectionListeners = new ArrayList<DataUsageProjectionListener>();
+        private long projectionLeadMillis;
         private Threshold downloadWarningThreshold = Threshold.none();
         private Threshold uploadWarningThreshold = Threshold.none();
+        private final List<Threshold> warningThresholds = new ArrayList<Threshold>();
+        private final List<DataUsage.Type> warningThresholdTypes = new ArrayList<DataUsage.Type>();
         private DataUsageStatsProvider dataUsageStatsProvider;
+        private long minSamplingIntervalMillis;
+        private long maxSamplingIntervalMillis;
+        private long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+        private long alertCooldownMillis;
+        private long peakRateWindowMillis = DEFAULT_PEAK_RATE_WINDOW_MILLIS;
+        private boolean measureInBackground;
+        private Executor executor;
+        private UsageStore usageStore;
+        private UsageTimeSeries timeSeries;
 
         /**
          * Register one or more listeners that will be called when your app's data usage goes over a threshold.
+         * The listeners are called on the TrafficCop's executor.
          *
          * @param listeners the listeners to register
          * @return the builder for chaining
+         * @see #executor(Executor)
          */
         public Builder alert(DataUsageAlertListener... listeners) {
-            this.adapters.addAll(Arrays.asList(listeners));
-            return this;
+            return alert((Executor) null, listeners);
         }
 
         /**
          * Register a collection of listeners that will be called when your app's data usage goes over a threshold.
+         * The listeners are called on the TrafficCop's executor.
          *
          * @param listeners the listeners to register
          * @return the builder for chaining
+         * @see #executor(Executor)
          */
         public Builder alert(Collection<DataUsageAlertListener> listeners) {
-            this.adapters.addAll(listeners);
+            for (DataUsageAlertListener listener : listeners) {
+                alert((Executor) null, listener);
+            }
+            return this;
+        }
+
+        /**
+         * Register one or more listeners that will be called on the given executor when your app's
+         * data usage goes over a threshold.
+         *
+         * @param executor  the executor to call the listeners on, or null to call them on the
+         *                  TrafficCop's executor
+         * @param listeners the listeners to register
+         * @return the builder for chaining
+         * @see TrafficCop#mainThreadExecutor()
+         */
+        public Builder alert(Executor executor, DataUsageAlertListener... listeners) {
+            for (DataUsageAlertListener listener : listeners) {
+                if (listener == null) {
+                    throw new IllegalArgumentException("listener cannot be null");
+                }
+                alertRegistrations.add(new AlertRegistration(listener, null, executor));
+            }
+            return this;
+        }
+
+        /**
+         * Register a listener that is given the data usage as primitives, so that no
+         * {@link DataUsage} has to be created to alert it. The listener is called on the
+         * TrafficCop's executor.
+         *
+         * @param listener the listener to register
+         * @return the builder for chaining
+         */
+        public Builder alert(PrimitiveDataUsageAlertListener listener) {
+            return alert((Executor) null, listener);
+        }
+
+        /**
+         * Register a listener that is given the data usage as primitives, called on the given
+         * executor.
+         *
+         * @param executor the executor to call the listener on, or null to call it on the
+         *                 TrafficCop's executor
+         * @param listener the listener to register
+         * @return the builder for chaining
+         * @see #alert(PrimitiveDataUsageAlertListener)
+         */
+        public Builder alert(Executor executor, PrimitiveDataUsageAlertListener listener) {
+            if (listener == null) {
+                throw new IllegalArgumentException("listener cannot be null");
+            }
+            alertRegistrations.add(new AlertRegistration(null, listener, executor));
+            return this;
+        }
+
+        /**
+         * Register one or more listeners that will be called when data usage is projected to
+         * reach a threshold within the given lead time, based on a moving average of the rate of
+         * usage. The projection is updated whenever usage is checked, so combine this with
+         * {@link #samplingInterval(int, TimeUnit)} to be warned while measuring. There is one lead
+         * time for all listeners, the last one given is used. The listeners are called on the
+         * TrafficCop's executor.
+         *
+         * @param leadTime  how long before a threshold would be reached to call the listeners
+         * @param unit      the unit the lead time is given in
+         * @param listeners the listeners to register
+         * @return the builder for chaining
+         */
+        public Builder earlyAlert(int leadTime, TimeUnit unit, DataUsageProjectionListener... listeners) {
+            if (leadTime <= 0) {
+                throw new IllegalArgumentException("leadTime must be positive");
+            }
+            for (DataUsageProjectionListener listener : listeners) {
+                if (listener == null) {
+                    throw new IllegalArgumentException("listener cannot be null");
+                }
+                projectionListeners.add(listener);
+            }
+            projectionLeadMillis = unit.toMillis(leadTime);
             return this;
         }
 
@@ -254,6 +1114,29 @@ public class TrafficCop {
             return this;
         }
 
+        /**
+         * Add one or more thresholds for the given type of data usage, on top of the download and
+         * upload warning thresholds. Each threshold is tracked separately, so for example you can
+         * be alerted of a burst per minute as well as of heavy usage over a week.
+         *
+         * @param type       the type of data usage the thresholds apply to
+         * @param thresholds the thresholds to hit
+         * @return the builder for chaining
+         */
+        public Builder warningThresholds(DataUsage.Type type, Threshold... thresholds) {
+            if (type == null) {
+                throw new IllegalArgumentException("type cannot be null");
+            }
+            for (Threshold threshold : thresholds) {
+                if (threshold == null) {
+                    throw new IllegalArgumentException("threshold cannot be null");
+                }
+                warningThresholds.add(threshold);
+                warningThresholdTypes.add(type);
+            }
+            return this;
+        }
+
         /**
          * Set the provider that collects the data usage stats. This does not need to be called by
          * default, but you may provide another implementation for more complex monitoring or for
@@ -267,6 +1150,216 @@ public class TrafficCop {
             return this;
         }
 
+        /**
+         * Periodically check data usage while measuring, so that a threshold can be reached
+         * without waiting for {@link TrafficCop#stopMeasuring()}. By default usage is only checked
+         * when measuring stops.
+         *
+         * @param interval the time between samples in the given unit
+         * @param unit     the unit the interval is given in
+         * @return the builder for chaining
+         */
+        public Builder samplingInterval(int interval, TimeUnit unit) {
+            return samplingInterval(interval, interval, unit);
+        }
+
+        /**
+         * Periodically check data usage while measuring, so that a threshold can be reached
+         * without waiting for {@link TrafficCop#stopMeasuring()}. Sampling starts at the minimum
+         * interval and backs off towards the maximum while data usage is low compared to the
+         * thresholds.
+         *
+         * @param minInterval the shortest time between samples in the given unit
+         * @param maxInterval the longest time between samples in the given unit
+         * @param unit        the unit the intervals are given in
+         * @return the builder for chaining
+         */
+        public Builder samplingInterval(int minInterval, int maxInterval, TimeUnit unit) {
+            if (minInterval <= 0) {
+                throw new IllegalArgumentException("minInterval must be positive");
+            }
+            if (maxInterval < minInterval) {
+                throw new IllegalArgumentException("maxInterval cannot be less than minInterval");
+            }
+            minSamplingIntervalMillis = unit.toMillis(minInterval);
+            maxSamplingIntervalMillis = unit.toMillis(maxInterval);
+            return this;
+        }
+
+        /**
+         * Keep measuring while the app is in the background, for example to count the usage of
+         * syncs and downloads, instead of only while one of its activities is started. This only
+         * applies to {@link TrafficCop#register(android.app.Application)}. Usage is checked when
+         * the app goes to the background; combine this with
+         * {@link #samplingInterval(int, int, TimeUnit)} to also check it while in the background.
+         *
+         * @param measureInBackground true to measure in the background, false to only measure in
+         *                            the foreground, the default
+         * @return the builder for chaining
+         */
+        public Builder measureInBackground(boolean measureInBackground) {
+            this.measureInBackground = measureInBackground;
+            return this;
+        }
+
+        /**
+         * Set how long measured usage may be kept in memory before it is saved, so that quickly
+         * switching between activities doesn't write to disk each time. At most this much usage is
+         * lost if the app crashes. Usage is also saved when {@link TrafficCop#flush()} is called,
+         * which a registered TrafficCop does when the app goes to the background. The default is
+         * 10 seconds, 0 saves after every measurement.
+         *
+         * @param interval the longest time between saves in the given unit
+         * @param unit     the unit the interval is given in
+         * @return the builder for chaining
+         */
+        public Builder flushInterval(int interval, TimeUnit unit) {
+            if (interval < 0) {
+                throw new IllegalArgumentException("interval cannot be negative");
+            }
+            flushIntervalMillis = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Set how long after a threshold alerts before it can alert again. While usage stays over
+         * a threshold it would otherwise be reached on every check; with a cooldown those alerts
+         * are coalesced into the first one. Each threshold has its own cooldown, and
+         * {@link Metrics#getAlertCount(Threshold)} still counts every time it was reached. The
+         * default is 0, alerting every time.
+         *
+         * @param cooldown the shortest time between alerts for a threshold in the given unit
+         * @param unit     the unit the cooldown is given in
+         * @return the builder for chaining
+         */
+        public Builder alertCooldown(int cooldown, TimeUnit unit) {
+            if (cooldown < 0) {
+                throw new IllegalArgumentException("cooldown cannot be negative");
+            }
+            alertCooldownMillis = unit.toMillis(cooldown);
+            return this;
+        }
+
+        /**
+         * Set how far back {@link TrafficCop#getPeakRate(DataUsage.Type, int, TimeUnit)} can look.
+         * The peak rate of each second is kept for this long, extended to the time span of the
+         * longest {@link Threshold#peak(long, SizeUnit) peak threshold}. The default is 5 minutes.
+         *
+         * @param window the longest window in the given unit
+         * @param unit   the unit the window is given in
+         * @return the builder for chaining
+         */
+        public Builder peakRateWindow(int window, TimeUnit unit) {
+            if (window <= 0) {
+                throw new IllegalArgumentException("window must be positive");
+            }
+            peakRateWindowMillis = unit.toMillis(window);
+            return this;
+        }
+
+        /**
+         * Set the executor that data usage is checked, saved and by default reported on, so that
+         * none of that work happens on the thread that stops measuring. Tasks are run one at a
+         * time even if the executor has many threads. By default each TrafficCop uses its own
+         * background thread.
+         *
+         * @param executor the executor
+         * @return the builder for chaining
+         */
+        public Builder executor(Executor executor) {
+            if (executor == null) {
+                throw new IllegalArgumentException("executor cannot be null");
+            }
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Set the store that persists data usage between app launches. By default usage is kept in
+         * a {@link JournalUsageStore} in the app's files directory. If the app runs in more than
+         * one process, use a {@link SharedUsageStore} so the thresholds apply to all of them.
+         *
+         * @param store the store
+         * @return the builder for chaining
+         */
+        public Builder usageStore(UsageStore store) {
+            if (store == null) {
+                throw new IllegalArgumentException("usageStore cannot be null");
+            }
+            this.usageStore = store;
+            return this;
+        }
+
+        /**
+         * Set a time series to add every measurement to, for a long history of data usage on
+         * disk. It is written and compacted on the TrafficCop's background thread, and the usage
+         * history and rolling thresholds are refilled from it when the app restarts. If none is
+         * set, one is kept in the app's files directory.
+         *
+         * @param timeSeries the time series
+         * @return the builder for chaining
+         */
+        public Builder timeSeries(UsageTimeSeries timeSeries) {
+            if (timeSeries == null) {
+                throw new IllegalArgumentException("timeSeries cannot be null");
+            }
+            this.timeSeries = timeSeries;
+            return this;
+        }
+
+        private boolean hasTaggedThresholds() {
+            for (Threshold threshold : warningThresholds) {
+                if (threshold.tag != TrafficTag.NONE) {
+                    return true;
+                }
+            }
+            return downloadWarningThreshold.tag != TrafficTag.NONE || uploadWarningThreshold.tag != TrafficTag.NONE;
+        }
+
+        /**
+         * Returns the threshold for the type with the lowest rate, not counting thresholds for a
+         * tag, or {@link Threshold#none()}.
+         */
+        private Threshold strictestThreshold(DataUsage.Type type) {
+            Threshold strictest = Threshold.none();
+            List<Threshold> thresholds = new ArrayList<Threshold>(warningThresholds);
+            List<DataUsage.Type> types = new ArrayList<DataUsage.Type>(warningThresholdTypes);
+            thresholds.add(downloadWarningThreshold);
+            types.add(DataUsage.Type.DOWNLOAD);
+            thresholds.add(uploadWarningThreshold);
+            types.add(DataUsage.Type.UPLOAD);
+            for (int i = 0; i < thresholds.size(); i++) {
+                Threshold threshold = thresholds.get(i);
+                if (types.get(i) != type || threshold == Threshold.none() || threshold.tag != TrafficTag.NONE) {
+                    continue;
+                }
+                if (strictest == Threshold.none() || Threshold.compareProducts(threshold.bytes, strictest.millis, strictest.bytes, threshold.millis) < 0) {
+                    strictest = threshold;
+                }
+            }
+            return strictest;
+        }
+
+        private ThresholdSet createThresholdSet(int stateOffset) {
+            List<Threshold> thresholds = new ArrayList<Threshold>();
+            List<DataUsage.Type> types = new ArrayList<DataUsage.Type>();
+            if (downloadWarningThreshold != Threshold.none()) {
+                thresholds.add(downloadWarningThreshold);
+                types.add(DataUsage.Type.DOWNLOAD);
+            }
+            if (uploadWarningThreshold != Threshold.none()) {
+                thresholds.add(uploadWarningThreshold);
+                types.add(DataUsage.Type.UPLOAD);
+            }
+            for (int i = 0; i < warningThresholds.size(); i++) {
+                if (warningThresholds.get(i) != Threshold.none()) {
+                    thresholds.add(warningThresholds.get(i));
+                    types.add(warningThresholdTypes.get(i));
+                }
+            }
+            return new ThresholdSet(thresholds, types, stateOffset, projectionLeadMillis, peakRateWindowMillis);
+        }
+
         /**
          * Construct the TrafficCop with the current configuration.
          *
@@ -274,15 +1367,23 @@ public class TrafficCop {
          * @return the TrafficCop
          */
         public TrafficCop create(String id, Context context) {
-            if (TRAFFIC_COP_IDS.contains(id)) {
+            if (hasTaggedThresholds() && dataUsageStatsProvider != null && !(dataUsageStatsProvider instanceof TaggedDataUsageStatsProvider)) {
+                throw new IllegalArgumentException("Thresholds for a tag need a TaggedDataUsageStatsProvider.");
+            }
+            if (hasTaggedThresholds() && dataUsageStatsProvider == null) {
+                dataUsageStatsProvider = new QtaguidDataUsageStatsProvider(context.getApplicationInfo().uid);
+            }
+            if (hasTaggedThresholds() && !((TaggedDataUsageStatsProvider) dataUsageStatsProvider).isTaggedUsageAvailable()) {
+                throw new IllegalArgumentException("Thresholds for a tag need tagged data usage, which isn't available.");
+            }
+            if (!TRAFFIC_COP_IDS.add(id)) {
                 throw new IllegalArgumentException("A TrafficCop with id '" + id + "' has already been created.");
             }
-            TRAFFIC_COP_IDS.add(id);
 
             if (dataUsageStatsProvider == null) {
                 dataUsageStatsProvider = new DataUsageStatsProviderImpl(context.getApplicationInfo().uid);
             }
-            return new TrafficCop(context.getApplicationContext(), id, adapters, downloadWarningThreshold, uploadWarningThreshold, dataUsageStatsProvider);
+            return new TrafficCop(context.getApplicationContext(), id, this);
         }
 
         /**
@@ -300,7 +1401,141 @@ public class TrafficCop {
         }
     }
 
-    private static class DataUsageStatsProviderImpl implements DataUsageStatsProvider {
+    /**
+     * A measurement session from {@link #beginSession()}, closing it ends the session.
+     */
+    public static final class Session implements Closeable {
+        private final TrafficCop trafficCop;
+        private final AtomicBoolean isOpen = new AtomicBoolean();
+
+        private Session(TrafficCop trafficCop) {
+            this.trafficCop = trafficCop;
+        }
+
+        /**
+         * Ends the session, checking the usage against the thresholds if it was the last one
+         * open. It is ignored once the TrafficCop has been destroyed. Call it only once, the
+         * session is recycled for the next {@link TrafficCop#beginSession()} as soon as it's
+         * closed.
+         */
+        @Override
+        public void close() {
+            if (!isOpen.compareAndSet(true, false)) {
+                return;
+            }
+            if (!trafficCop.isDestroyed) {
+                trafficCop.end();
+            }
+            trafficCop.recycle(this);
+        }
+    }
+
+    /**
+     * The baseline of a measurement, swapped in atomically when measuring starts and swapped for
+     * an idle marker when it ends. The depth counts the callers measuring. Samples move the
+     * baseline forward in place rather than swapping in a new one, so sampling doesn't allocate;
+     * the baseline is only read or moved while holding the measurement's lock.
+     */
+    private static final class Measurement {
+        // Null when idle.
+        final AtomicInteger depth;
+        long startTime;
+        long bytesReceived;
+        long bytesTransmitted;
+
+        Measurement(AtomicInteger depth, long startTime, long bytesReceived, long bytesTransmitted) {
+            this.depth = depth;
+            this.startTime = startTime;
+            this.bytesReceived = bytesReceived;
+            this.bytesTransmitted = bytesTransmitted;
+        }
+
+        /**
+         * Returns a new marker for not measuring. Each one is distinct so that a stale marker
+         * can't be swapped out.
+         */
+        static Measurement idle() {
+            return new Measurement(null, 0, 0, 0);
+        }
+
+        boolean isIdle() {
+            return depth == null;
+        }
+
+    }
+
+    /**
+     * The usage of one measurement waiting to be evaluated, recycled once it has run.
+     */
+    private final class Evaluation implements Runnable {
+        long nowMillis;
+        long timeMillis;
+        long elapsedMillis;
+        long elapsedNanos;
+        long receivedDelta;
+        long transmittedDelta;
+
+        @Override
+        public void run() {
+            try {
+                evaluate(nowMillis, timeMillis, elapsedMillis, elapsedNanos, receivedDelta, transmittedDelta);
+            } finally {
+                evaluationPool.release(this);
+            }
+        }
+    }
+
+    private static class AlertRegistration {
+        final DataUsageAlertListener listener;
+        final PrimitiveDataUsageAlertListener primitiveListener;
+        private final Executor executor;
+
+        AlertRegistration(DataUsageAlertListener listener, PrimitiveDataUsageAlertListener primitiveListener, Executor executor) {
+            this.listener = listener;
+            this.primitiveListener = primitiveListener;
+            this.executor = executor;
+        }
+
+        void alert(final Threshold threshold, final DataUsage.Type type, final long bytes, final long millis, final DataUsage usage) {
+            if (executor == null) {
+                call(threshold, type, bytes, millis, usage);
+            } else {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        call(threshold, type, bytes, millis, usage);
+                    }
+                });
+            }
+        }
+
+        private void call(Threshold threshold, DataUsage.Type type, long bytes, long millis, DataUsage usage) {
+            // One failing listener mustn't keep the others, or the rest of the evaluation, from
+            // running.
+            try {
+                if (listener != null) {
+                    listener.alertThreshold(threshold, usage);
+                } else {
+                    primitiveListener.alertThreshold(threshold, type, bytes, millis, threshold.tag);
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Alert listener failed", e);
+            }
+        }
+    }
+
+    private static class MainThreadExecutor implements Executor {
+        static final MainThreadExecutor INSTANCE = new MainThreadExecutor();
+
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    }
+
+    private static class DataUsageStatsProviderImpl implements SnapshotDataUsageStatsProvider {
         private final int uid;
 
         DataUsageStatsProviderImpl(int uid) {
@@ -321,5 +1556,14 @@ public class TrafficCop {
         public long getBytesReceived() {
             return TrafficStats.getUidRxBytes(uid);
         }
+
+        @Override
+        public void readSnapshot(UsageSnapshot reuse) {
+            // TrafficStats reads each counter separately, so this is still two reads. The time is
+            // taken after both so the reading never ends before the bytes it counts.
+            long bytesReceived = TrafficStats.getUidRxBytes(uid);
+            long bytesTransmitted = TrafficStats.getUidTxBytes(uid);
+            reuse.set(System.nanoTime(), bytesReceived, bytesTransmitted);
+        }
     }
 }
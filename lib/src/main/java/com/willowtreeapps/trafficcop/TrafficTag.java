@@ -0,0 +1,78 @@
+package com.willowtreeapps.trafficcop;
+
+import android.net.TrafficStats;
+
+import java.io.Closeable;
+
+/**
+ * <p>
+ * Tags the network traffic of the current thread so that it can be attributed to a feature of
+ * your app, for example images or sync. Sockets are tagged when they are created or connected, so
+ * open the scope before making the request.</p>
+ * <pre>{@code
+ * TrafficTag.Scope scope = TrafficTag.begin(TAG_IMAGES);
+ * try {
+ *     // load images
+ * } finally {
+ *     scope.close();
+ * }
+ * }</pre>
+ * <p>
+ * Use a {@link TaggedDataUsageStatsProvider} with thresholds for a tag to be alerted about the
+ * usage of one feature.</p>
+ *
+ * @see Threshold.Builder#forTag(int)
+ */
+public final class TrafficTag {
+    /**
+     * Means the traffic isn't attributed to a tag.
+     */
+    public static final int NONE = -1;
+
+    private TrafficTag() {
+    }
+
+    /**
+     * Tags the network traffic of the current thread until the returned scope is closed.
+     *
+     * @param tag the tag
+     * @return the scope, which restores the thread's previous tag when closed
+     */
+    public static Scope begin(int tag) {
+        if (tag == NONE) {
+            throw new IllegalArgumentException("tag cannot be TrafficTag.NONE");
+        }
+        Scope scope = new Scope(TrafficStats.getThreadStatsTag());
+        TrafficStats.setThreadStatsTag(tag);
+        return scope;
+    }
+
+    /**
+     * A tag that was applied to the current thread.
+     */
+    public static final class Scope implements Closeable {
+        private final int previousTag;
+        private boolean isClosed;
+
+        private Scope(int previousTag) {
+            this.previousTag = previousTag;
+        }
+
+        /**
+         * Restores the thread's previous tag. This must be called on the thread that began the
+         * scope, calling it more than once has no effect.
+         */
+        @Override
+        public void close() {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            if (previousTag == NONE) {
+                TrafficStats.clearThreadStatsTag();
+            } else {
+                TrafficStats.setThreadStatsTag(previousTag);
+            }
+        }
+    }
+}
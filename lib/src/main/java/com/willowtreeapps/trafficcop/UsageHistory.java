@@ -0,0 +1,248 @@
+package com.willowtreeapps.trafficcop;
+
+/**
+ * <p>
+ * The recent history of data usage, kept in buckets of a second, a minute, an hour and a day. Each
+ * level keeps a fixed number of buckets, so memory stays the same however long the app runs: the
+ * last {@value #SECOND_BUCKETS} seconds, {@value #MINUTE_BUCKETS} minutes, {@value #HOUR_BUCKETS}
+ * hours and {@value #DAY_BUCKETS} days.</p>
+ * <p>
+ * Usage is added to the current second. When a bucket is finished its usage is added to the
+ * bucket of the next level that contains it, so each level is fed from the one below.</p>
+ * <p>
+ * A query adds up the largest finished buckets that fit in the range, falling back to smaller ones
+ * at its edges, so it only reads a few buckets per level. It counts the buckets that start within
+ * the range, at the finest level that still has them: a range that starts within an hour that is
+ * only kept as a whole hour starts from the next hour instead.</p>
+ * <p>
+ * Days are in UTC.</p>
+ */
+public final class UsageHistory {
+    static final int SECOND_BUCKETS = 120;
+    static final int MINUTE_BUCKETS = 120;
+    static final int HOUR_BUCKETS = 72;
+    static final int DAY_BUCKETS = 90;
+
+    private final Level[] levels = {
+            new Level(1000L, SECOND_BUCKETS),
+            new Level(60 * 1000L, MINUTE_BUCKETS),
+            new Level(60 * 60 * 1000L, HOUR_BUCKETS),
+            new Level(24 * 60 * 60 * 1000L, DAY_BUCKETS)
+    };
+
+    /**
+     * Records data used at the given time. Usage recorded at a time before the last one is added
+     * to the last one instead.
+     *
+     * @param timeMillis       the time the data was used, in milliseconds since the epoch
+     * @param bytesReceived    the bytes received
+     * @param bytesTransmitted the bytes transmitted
+     */
+    public synchronized void add(long timeMillis, long bytesReceived, long bytesTransmitted) {
+        add(0, timeMillis, bytesReceived, bytesTransmitted);
+    }
+
+    /**
+     * Adds the usage in the time series that is recent enough to be kept, so that the history
+     * carries on from before the app restarted. Only call it before anything else is added.
+     *
+     * @param timeSeries the time series to read
+     * @param nowMillis  the current time in milliseconds since the epoch
+     */
+    synchronized void load(UsageTimeSeries timeSeries, long nowMillis) {
+        long keptMillis = DAY_BUCKETS * levels[levels.length - 1].bucketMillis;
+        timeSeries.read(nowMillis - keptMillis, nowMillis, new UsageTimeSeries.Visitor() {
+            @Override
+            public void visit(long timeMillis, long durationMillis, long bytesReceived, long bytesTransmitted) {
+                add(0, timeMillis, bytesReceived, bytesTransmitted);
+            }
+        });
+    }
+
+    /**
+     * Returns the bytes received in the given range.
+     *
+     * @param fromMillis the start of the range, inclusive
+     * @param toMillis   the end of the range, exclusive
+     * @return the bytes received
+     */
+    public long getBytesReceived(long fromMillis, long toMillis) {
+        return getUsage(fromMillis, toMillis, DataUsage.Type.DOWNLOAD).bytes;
+    }
+
+    /**
+     * Returns the bytes transmitted in the given range.
+     *
+     * @param fromMillis the start of the range, inclusive
+     * @param toMillis   the end of the range, exclusive
+     * @return the bytes transmitted
+     */
+    public long getBytesTransmitted(long fromMillis, long toMillis) {
+        return getUsage(fromMillis, toMillis, DataUsage.Type.UPLOAD).bytes;
+    }
+
+    /**
+     * Returns the data usage of the given type in the given range, which can be checked against a
+     * threshold with {@link Threshold#hasReached(DataUsage)}.
+     *
+     * @param fromMillis the start of the range, inclusive
+     * @param toMillis   the end of the range, exclusive
+     * @param type       the type of data usage
+     * @return the data usage
+     */
+    public synchronized DataUsage getUsage(long fromMillis, long toMillis, DataUsage.Type type) {
+        if (type == null) {
+            throw new IllegalArgumentException("type cannot be null");
+        }
+        return new DataUsage(type, sum(fromMillis, toMillis, type), Math.max(0, toMillis - fromMillis));
+    }
+
+    private void add(int level, long timeMillis, long bytesReceived, long bytesTransmitted) {
+        Level current = levels[level];
+        long bucket = timeMillis / current.bucketMillis;
+        if (current.last != -1 && bucket < current.last) {
+            bucket = current.last;
+        }
+        if (current.last != -1 && bucket > current.last && level + 1 < levels.length) {
+            // The last bucket is finished, pass it on.
+            int slot = current.slot(current.last);
+            if (current.buckets[slot] == current.last) {
+                add(level + 1, current.last * current.bucketMillis, current.received[slot], current.transmitted[slot]);
+            }
+        }
+        int slot = current.slot(bucket);
+        if (current.buckets[slot] != bucket) {
+            current.buckets[slot] = bucket;
+            current.received[slot] = 0;
+            current.transmitted[slot] = 0;
+        }
+        current.received[slot] += bytesReceived;
+        current.transmitted[slot] += bytesTransmitted;
+        current.last = bucket;
+    }
+
+    private long sum(long fromMillis, long toMillis, DataUsage.Type type) {
+        Level seconds = levels[0];
+        if (seconds.last == -1) {
+            return 0;
+        }
+        // Whole seconds that start within the range, and nothing was recorded after the last one.
+        long t = firstBucketFrom(fromMillis, seconds.bucketMillis) * seconds.bucketMillis;
+        long end = Math.min(firstBucketFrom(toMillis, seconds.bucketMillis), seconds.last + 1) * seconds.bucketMillis;
+
+        long sum = 0;
+        while (t < end) {
+            int finest = 0;
+            while (finest < levels.length && !holds(finest, t)) {
+                finest++;
+            }
+            if (finest == levels.length) {
+                // Nothing is kept for this time, skip to the next time something is.
+                t = nextKeptMillis(t);
+                continue;
+            }
+            if (t % levels[finest].bucketMillis != 0) {
+                // Only kept as a bucket that starts before t.
+                t = (t / levels[finest].bucketMillis + 1) * levels[finest].bucketMillis;
+                continue;
+            }
+            // Use the largest finished bucket that starts here and fits in the range.
+            int level = levels.length - 1;
+            for (; level > finest; level--) {
+                Level current = levels[level];
+                long bucketEnd = t + current.bucketMillis;
+                // A bucket is finished once the level below has moved past it.
+                if (t % current.bucketMillis == 0 && bucketEnd <= end && current.retains(t)
+                        && levels[level - 1].last * levels[level - 1].bucketMillis >= bucketEnd) {
+                    break;
+                }
+            }
+            Level current = levels[level];
+            sum += current.get(t / current.bucketMillis, type);
+            t += current.bucketMillis;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns if the level has the usage at the given time. Usage is only passed on to a level
+     * once its bucket in the level below is finished.
+     */
+    private boolean holds(int level, long timeMillis) {
+        return levels[level].retains(timeMillis)
+                && (level == 0 || timeMillis < levels[level - 1].last * levels[level - 1].bucketMillis);
+    }
+
+    /**
+     * Returns the earliest start of the buckets kept by any level after the given time, or
+     * {@link Long#MAX_VALUE} if there are none.
+     */
+    private long nextKeptMillis(long timeMillis) {
+        long next = Long.MAX_VALUE;
+        for (Level level : levels) {
+            if (level.last != -1) {
+                long oldest = (level.last - level.buckets.length + 1) * level.bucketMillis;
+                if (oldest > timeMillis) {
+                    next = Math.min(next, oldest);
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Returns the first bucket that starts at or after the given time.
+     */
+    private static long firstBucketFrom(long timeMillis, long bucketMillis) {
+        if (timeMillis <= 0) {
+            return 0;
+        }
+        return timeMillis / bucketMillis + (timeMillis % bucketMillis == 0 ? 0 : 1);
+    }
+
+    /**
+     * A ring of buckets of one length.
+     */
+    private static final class Level {
+        final long bucketMillis;
+        // The bucket each slot holds, its start time divided by bucketMillis.
+        final long[] buckets;
+        final long[] received;
+        final long[] transmitted;
+        long last = -1;
+
+        Level(long bucketMillis, int count) {
+            this.bucketMillis = bucketMillis;
+            this.buckets = new long[count];
+            this.received = new long[count];
+            this.transmitted = new long[count];
+            for (int i = 0; i < count; i++) {
+                buckets[i] = -1;
+            }
+        }
+
+        boolean retains(long timeMillis) {
+            long bucket = timeMillis / bucketMillis;
+            return last != -1 && bucket > last - buckets.length && bucket <= last;
+        }
+
+        long get(long bucket, DataUsage.Type type) {
+            int slot = slot(bucket);
+            if (buckets[slot] != bucket) {
+                return 0;
+            }
+            switch (type) {
+                case DOWNLOAD:
+                    return received[slot];
+                case UPLOAD:
+                    return transmitted[slot];
+                default:
+                    return received[slot] + transmitted[slot];
+            }
+        }
+
+        int slot(long bucket) {
+            return (int) (bucket % buckets.length);
+        }
+    }
+}
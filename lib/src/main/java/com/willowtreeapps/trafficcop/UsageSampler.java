@@ -0,0 +1,129 @@
+package com.willowtreeapps.trafficcop;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Periodically samples data usage while the TrafficCop is measuring so that a threshold can be
+ * reached without waiting for {@link TrafficCop#stopMeasuring()}. The interval backs off while
+ * usage is low and tightens as the rate of usage approaches a threshold.
+ * <p>
+ * Start and stop may race with a running sample, so the methods are synchronized and stopping
+ * only cancels the next sample once the TrafficCop is really idle.</p>
+ */
+final class UsageSampler {
+    private final TrafficCop trafficCop;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final ThresholdSet thresholds;
+    private final Runnable sampleTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!trafficCop.sample()) {
+                onIdle();
+            }
+        }
+    };
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> future;
+    private long intervalMillis;
+    private boolean isShutdown;
+
+    UsageSampler(TrafficCop trafficCop, long minIntervalMillis, long maxIntervalMillis, ThresholdSet thresholds) {
+        this.trafficCop = trafficCop;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.thresholds = thresholds;
+    }
+
+    /**
+     * Starts sampling at the shortest interval, unless it's already sampling.
+     */
+    synchronized void start() {
+        if (future != null) {
+            return;
+        }
+        intervalMillis = minIntervalMillis;
+        schedule();
+    }
+
+    /**
+     * Stops sampling until {@link #start()} is called again, unless the TrafficCop has started
+     * measuring again in the meantime.
+     */
+    synchronized void stop() {
+        if (!trafficCop.isMeasuring()) {
+            cancel();
+        }
+    }
+
+    /**
+     * Stops sampling and releases the sampling thread.
+     */
+    synchronized void shutdown() {
+        isShutdown = true;
+        cancel();
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Adjusts the interval based on the usage seen by the last sample and schedules the next one.
+     *
+     * @param elapsedNanos     the time since the previous sample
+     * @param bytesReceived    the bytes received since the previous sample
+     * @param bytesTransmitted the bytes transmitted since the previous sample
+     */
+    synchronized void onSample(long elapsedNanos, long bytesReceived, long bytesTransmitted) {
+        double ratio = thresholds.maxRateRatio(elapsedNanos, bytesReceived, bytesTransmitted);
+
+        if (ratio <= 0) {
+            intervalMillis = Math.min(intervalMillis * 2, maxIntervalMillis);
+        } else if (ratio >= 0.5) {
+            intervalMillis = minIntervalMillis;
+        } else {
+            intervalMillis = Math.max(minIntervalMillis, Math.min(maxIntervalMillis, (long) (minIntervalMillis / (2 * ratio))));
+        }
+        schedule();
+    }
+
+    private synchronized void onIdle() {
+        future = null;
+        // Measuring may have started again after the sample found the TrafficCop idle.
+        if (trafficCop.isMeasuring()) {
+            intervalMillis = minIntervalMillis;
+            schedule();
+        }
+    }
+
+    private void cancel() {
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    private void schedule() {
+        cancel();
+        if (isShutdown) {
+            return;
+        }
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TrafficCop-sampler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        future = executor.schedule(sampleTask, intervalMillis, MILLISECONDS);
+    }
+}
@@ -0,0 +1,56 @@
+package com.willowtreeapps.trafficcop;
+
+/**
+ * A mutable reading of the data usage counters, filled in one go by a
+ * {@link SnapshotDataUsageStatsProvider}. Callers own the snapshot and reuse it across reads so
+ * that reading doesn't allocate.
+ */
+public final class UsageSnapshot {
+    private long nanoTime;
+    private long bytesReceived;
+    private long bytesTransmitted;
+
+    /**
+     * Sets all the values of the snapshot.
+     *
+     * @param nanoTime         the time of the reading, see {@link DataUsageStatsProvider#getNanoTime()}
+     * @param bytesReceived    the total bytes received
+     * @param bytesTransmitted the total bytes transmitted
+     */
+    public void set(long nanoTime, long bytesReceived, long bytesTransmitted) {
+        this.nanoTime = nanoTime;
+        this.bytesReceived = bytesReceived;
+        this.bytesTransmitted = bytesTransmitted;
+    }
+
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getBytesTransmitted() {
+        return bytesTransmitted;
+    }
+
+    /**
+     * Fills the snapshot from any provider, in one call if it supports snapshots and from its
+     * separate getters otherwise.
+     */
+    static void read(DataUsageStatsProvider provider, UsageSnapshot reuse) {
+        if (provider instanceof SnapshotDataUsageStatsProvider) {
+            ((SnapshotDataUsageStatsProvider) provider).readSnapshot(reuse);
+        } else {
+            long bytesReceived = provider.getBytesReceived();
+            long bytesTransmitted = provider.getBytesTransmitted();
+            reuse.set(provider.getNanoTime(), bytesReceived, bytesTransmitted);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UsageSnapshot(" + nanoTime + ", received: " + bytesReceived + ", transmitted: " + bytesTransmitted + ")";
+    }
+}
@@ -0,0 +1,58 @@
+package com.willowtreeapps.trafficcop;
+
+/**
+ * Persists the data usage a TrafficCop has accumulated so that it carries across app launches. The
+ * state is an opaque array of counters owned by the TrafficCop; an implementation only has to hand
+ * back the last array it was given. Methods are only ever called from the TrafficCop's executor,
+ * one at a time.
+ *
+ * @see JournalUsageStore
+ * @see SharedUsageStore
+ */
+public interface UsageStore {
+    /**
+     * Loads the last saved state.
+     *
+     * @param state the array to load the state into
+     * @return true if state of the same length was saved and has been loaded, false otherwise
+     */
+    boolean load(long[] state);
+
+    /**
+     * Saves the state, replacing any previously saved state.
+     *
+     * @param state the state to save
+     */
+    void save(long[] state);
+
+    /**
+     * Removes any saved state.
+     */
+    void clear();
+
+    /**
+     * Returns true if other processes save to the same state. The TrafficCop then saves through
+     * {@link #merge} so their usage is combined, and never clears the state when it is destroyed.
+     */
+    boolean isShared();
+
+    /**
+     * Combines the state with the saved state and saves the result, with no other save in between.
+     * The combined state is copied back into the given array.
+     *
+     * @param state  the state to combine, replaced by the result
+     * @param merger combines the two, given all zeros if nothing was saved
+     */
+    void merge(long[] state, Merger merger);
+
+    /**
+     * Combines a TrafficCop's state with the saved state.
+     */
+    interface Merger {
+        /**
+         * @param saved the saved state, to be updated in place
+         * @param state the TrafficCop's state
+         */
+        void merge(long[] saved, long[] state);
+    }
+}
@@ -0,0 +1,643 @@
+package com.willowtreeapps.trafficcop;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * A long history of data usage on disk, the bytes received and transmitted in each minute. Give
+ * it to {@link TrafficCop.Builder#timeSeries(UsageTimeSeries)} to have every measurement added to
+ * it.</p>
+ * <p>
+ * Minutes are written in blocks of up to an hour. Within a block the times, bytes received and
+ * bytes transmitted are stored as separate columns, each value as the zig-zag varint encoded
+ * difference from the one before, so a typical minute takes a few bytes and minutes without usage
+ * take none. A week of minutes fits in tens of kilobytes. Reading a range only decodes the blocks
+ * that overlap it.</p>
+ * <p>
+ * Every so often the file is compacted: minutes older than the minute retention are merged into
+ * hours, hours older than the hour retention are dropped, and small blocks are merged. Compaction
+ * happens as part of {@link #add(long, long, long)}, which the TrafficCop calls on its own
+ * background thread.</p>
+ * <p>
+ * A minute is written once it is over, at the latest {@value #FLUSH_INTERVAL_MINUTES} minutes
+ * later, or when {@link #flush()} is called, which also writes what the current minute has so far.
+ * Blocks are checksummed and a block torn by the app dying while writing it is dropped. If the file
+ * can't be read or written the error is logged and the usage in question is left out, so a full
+ * disk never stops usage from being measured.</p>
+ */
+public class UsageTimeSeries {
+    /**
+     * Called for each point read.
+     */
+    public interface Visitor {
+        /**
+         * @param timeMillis       the start of the minute or hour
+         * @param durationMillis   the length of the point, a minute or an hour
+         * @param bytesReceived    the bytes received
+         * @param bytesTransmitted the bytes transmitted
+         */
+        void visit(long timeMillis, long durationMillis, long bytesReceived, long bytesTransmitted);
+    }
+
+    private static final String TAG = "UsageTimeSeries";
+    static final int MINUTES = 0;
+    static final int HOURS = 1;
+    private static final long[] RESOLUTION_MILLIS = {60 * 1000L, 60 * 60 * 1000L};
+    private static final int[] BLOCK_POINTS = {60, 24};
+    static final int FLUSH_INTERVAL_MINUTES = 10;
+    private static final int COMPACT_AFTER_BLOCKS = 32;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final File file;
+    private final long minuteRetentionMillis;
+    private final long hourRetentionMillis;
+    private final CRC32 crc = new CRC32();
+    private RandomAccessFile randomAccessFile;
+    private final List<Block> blocks = new ArrayList<Block>();
+    private long fileLength;
+    private int blocksSinceCompaction;
+    private byte[] readBuffer = new byte[256];
+
+    // The minute being counted, not yet finished, and how much of it a flush already wrote.
+    private long minute = -1;
+    private long minuteReceived;
+    private long minuteTransmitted;
+    private long minuteWrittenReceived;
+    private long minuteWrittenTransmitted;
+    // Finished minutes waiting to be written.
+    private final Points pending = new Points(MINUTES, BLOCK_POINTS[MINUTES]);
+
+    /**
+     * Constructs a time series in the given file that keeps minutes for a week and hours for a
+     * year.
+     *
+     * @param file the file
+     */
+    public UsageTimeSeries(File file) {
+        this(file, 7, 365);
+    }
+
+    /**
+     * Constructs a time series in the given file.
+     *
+     * @param file          the file
+     * @param minuteDays    how many days to keep each minute for before merging them into hours
+     * @param retentionDays how many days to keep the hours for
+     */
+    public UsageTimeSeries(File file, int minuteDays, int retentionDays) {
+        if (file == null) {
+            throw new IllegalArgumentException("file cannot be null");
+        }
+        if (minuteDays < 1 || retentionDays < minuteDays) {
+            throw new IllegalArgumentException("minuteDays must be at least 1 and no more than retentionDays");
+        }
+        this.file = file;
+        this.minuteRetentionMillis = minuteDays * DAY_MILLIS;
+        this.hourRetentionMillis = retentionDays * DAY_MILLIS;
+    }
+
+    /**
+     * Adds data used at the given time. Usage added at a time before the last one is added to the
+     * last one instead.
+     *
+     * @param timeMillis       the time the data was used, in milliseconds since the epoch
+     * @param bytesReceived    the bytes received
+     * @param bytesTransmitted the bytes transmitted
+     */
+    public synchronized void add(long timeMillis, long bytesReceived, long bytesTransmitted) {
+        long now = Math.max(timeMillis / RESOLUTION_MILLIS[MINUTES], minute);
+        if (now != minute) {
+            if (minute != -1) {
+                addPendingMinute();
+            }
+            minute = now;
+            minuteReceived = 0;
+            minuteTransmitted = 0;
+            minuteWrittenReceived = 0;
+            minuteWrittenTransmitted = 0;
+        }
+        minuteReceived += bytesReceived;
+        minuteTransmitted += bytesTransmitted;
+
+        if (pending.count > 0 && (pending.count == pending.times.length || minute - pending.times[0] >= FLUSH_INTERVAL_MINUTES)) {
+            writePending();
+            if (blocksSinceCompaction >= COMPACT_AFTER_BLOCKS) {
+                compact(timeMillis);
+            }
+        }
+    }
+
+    /**
+     * Writes the minutes that haven't been written yet, including the usage so far in the current
+     * one, so that nothing is lost if the app is killed.
+     */
+    public synchronized void flush() {
+        if (pending.count == pending.times.length) {
+            writePending();
+        }
+        if (minute != -1) {
+            addPendingMinute();
+        }
+        if (pending.count > 0) {
+            writePending();
+        }
+    }
+
+    /**
+     * Merges old minutes into hours, drops hours past the retention and merges small blocks.
+     * This is done automatically every so often.
+     *
+     * @param nowMillis the current time
+     */
+    public synchronized void compact(long nowMillis) {
+        try {
+            open();
+            long minuteCutoff = (nowMillis - minuteRetentionMillis) / RESOLUTION_MILLIS[HOURS] * RESOLUTION_MILLIS[HOURS];
+            long hourCutoff = nowMillis - hourRetentionMillis;
+            BlockWriter output = new BlockWriter(new File(file.getPath() + ".tmp"));
+            try {
+                Points hours = new Points(HOURS, BLOCK_POINTS[HOURS]);
+                Points minutes = new Points(MINUTES, BLOCK_POINTS[MINUTES]);
+                long hour = -1;
+                long hourReceived = 0;
+                long hourTransmitted = 0;
+                Points block = new Points(MINUTES, BLOCK_POINTS[MINUTES]);
+                for (int b = 0; b < blocks.size(); b++) {
+                    readBlock(blocks.get(b), block);
+                    for (int i = 0; i < block.count; i++) {
+                        long time = block.times[i] * RESOLUTION_MILLIS[block.resolution];
+                        if (block.resolution == HOURS || time < minuteCutoff) {
+                            long pointHour = time / RESOLUTION_MILLIS[HOURS];
+                            if (pointHour != hour) {
+                                if (hour != -1 && hour * RESOLUTION_MILLIS[HOURS] >= hourCutoff) {
+                                    output.append(hours, hour, hourReceived, hourTransmitted);
+                                }
+                                hour = pointHour;
+                                hourReceived = 0;
+                                hourTransmitted = 0;
+                            }
+                            hourReceived += block.received[i];
+                            hourTransmitted += block.transmitted[i];
+                        } else {
+                            if (hour != -1) {
+                                // Points are in order, so the hours are done. Write them first to
+                                // keep the file in order.
+                                if (hour * RESOLUTION_MILLIS[HOURS] >= hourCutoff) {
+                                    output.append(hours, hour, hourReceived, hourTransmitted);
+                                }
+                                output.finish(hours);
+                                hour = -1;
+                            }
+                            output.append(minutes, block.times[i], block.received[i], block.transmitted[i]);
+                        }
+                    }
+                }
+                if (hour != -1 && hour * RESOLUTION_MILLIS[HOURS] >= hourCutoff) {
+                    output.append(hours, hour, hourReceived, hourTransmitted);
+                }
+                output.finish(hours);
+                output.finish(minutes);
+            } finally {
+                output.close();
+            }
+
+            close();
+            if (!output.file.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to compact " + file, e);
+            close();
+        }
+        // Only try again after as many blocks as usual.
+        blocksSinceCompaction = 0;
+    }
+
+    /**
+     * Reads the points that start within the given range, oldest first, including minutes not
+     * yet written.
+     *
+     * @param fromMillis the start of the range, inclusive
+     * @param toMillis   the end of the range, exclusive
+     * @param visitor    called for each point
+     */
+    public synchronized void read(long fromMillis, long toMillis, Visitor visitor) {
+        if (visitor == null) {
+            throw new IllegalArgumentException("visitor cannot be null");
+        }
+        try {
+            open();
+            Points block = new Points(MINUTES, BLOCK_POINTS[MINUTES]);
+            for (int b = 0; b < blocks.size(); b++) {
+                Block header = blocks.get(b);
+                long resolutionMillis = RESOLUTION_MILLIS[header.resolution];
+                if (header.first * resolutionMillis >= toMillis || (header.last + 1) * resolutionMillis <= fromMillis) {
+                    continue;
+                }
+                readBlock(header, block);
+                visit(block, fromMillis, toMillis, visitor);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+            close();
+        }
+        visit(pending, fromMillis, toMillis, visitor);
+        long minuteMillis = RESOLUTION_MILLIS[MINUTES];
+        if (minute != -1 && minute * minuteMillis >= fromMillis && minute * minuteMillis < toMillis) {
+            visitor.visit(minute * minuteMillis, minuteMillis, minuteReceived - minuteWrittenReceived, minuteTransmitted - minuteWrittenTransmitted);
+        }
+    }
+
+    /**
+     * Returns the data usage of the given type in the points that start within the given range.
+     *
+     * @param fromMillis the start of the range, inclusive
+     * @param toMillis   the end of the range, exclusive
+     * @param type       the type of data usage
+     * @return the data usage
+     */
+    public DataUsage getUsage(long fromMillis, long toMillis, final DataUsage.Type type) {
+        if (type == null) {
+            throw new IllegalArgumentException("type cannot be null");
+        }
+        final long[] bytes = new long[1];
+        read(fromMillis, toMillis, new Visitor() {
+            @Override
+            public void visit(long timeMillis, long durationMillis, long bytesReceived, long bytesTransmitted) {
+                switch (type) {
+                    case DOWNLOAD:
+                        bytes[0] += bytesReceived;
+                        break;
+                    case UPLOAD:
+                        bytes[0] += bytesTransmitted;
+                        break;
+                    default:
+                        bytes[0] += bytesReceived + bytesTransmitted;
+                        break;
+                }
+            }
+        });
+        return new DataUsage(type, bytes[0], Math.max(0, toMillis - fromMillis));
+    }
+
+    /**
+     * Deletes the file and forgets everything added.
+     */
+    public synchronized void clear() {
+        close();
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+        minute = -1;
+        minuteWrittenReceived = 0;
+        minuteWrittenTransmitted = 0;
+        pending.count = 0;
+    }
+
+    /**
+     * Returns the size of the file in bytes.
+     */
+    synchronized long fileLength() {
+        try {
+            open();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+            close();
+        }
+        return fileLength;
+    }
+
+    /**
+     * Adds the usage of the current minute that hasn't been written yet to the pending minutes.
+     */
+    private void addPendingMinute() {
+        long received = minuteReceived - minuteWrittenReceived;
+        long transmitted = minuteTransmitted - minuteWrittenTransmitted;
+        if (received != 0 || transmitted != 0) {
+            pending.add(minute, received, transmitted);
+            minuteWrittenReceived = minuteReceived;
+            minuteWrittenTransmitted = minuteTransmitted;
+        }
+    }
+
+    private void writePending() {
+        try {
+            open();
+            byte[] encoded = encode(pending);
+            randomAccessFile.seek(fileLength);
+            randomAccessFile.write(encoded);
+            blocks.add(new Block(pending.resolution, pending.times[0], pending.times[pending.count - 1], fileLength, encoded.length));
+            fileLength += encoded.length;
+            blocksSinceCompaction++;
+        } catch (IOException e) {
+            // Reopening drops whatever part of the block made it into the file.
+            Log.w(TAG, "Unable to write " + file, e);
+            close();
+        }
+        pending.count = 0;
+    }
+
+    private static void visit(Points points, long fromMillis, long toMillis, Visitor visitor) {
+        long resolutionMillis = RESOLUTION_MILLIS[points.resolution];
+        for (int i = 0; i < points.count; i++) {
+            long time = points.times[i] * resolutionMillis;
+            if (time >= fromMillis && time < toMillis) {
+                visitor.visit(time, resolutionMillis, points.received[i], points.transmitted[i]);
+            }
+        }
+    }
+
+    /**
+     * Opens the file and indexes its blocks, dropping everything from the first block that
+     * doesn't check out.
+     */
+    private void open() throws IOException {
+        if (randomAccessFile != null) {
+            return;
+        }
+        // A leftover temp file means we died while compacting, before the rename.
+        new File(file.getPath() + ".tmp").delete();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        byte[] contents = new byte[(int) randomAccessFile.length()];
+        randomAccessFile.readFully(contents);
+
+        blocks.clear();
+        int position = 0;
+        Decoder decoder = new Decoder();
+        while (position < contents.length) {
+            decoder.reset(contents, position, contents.length);
+            try {
+                int resolution = decoder.readByte();
+                decoder.readVarint(); // count
+                long first = decoder.readVarint();
+                long last = first + decoder.readVarint();
+                int payloadLength = (int) decoder.readVarint();
+                int end = decoder.position + payloadLength + 4;
+                if (resolution < 0 || resolution > HOURS || payloadLength < 0 || end > contents.length
+                        || checksum(contents, position, end - 4) != readInt(contents, end - 4)) {
+                    break;
+                }
+                blocks.add(new Block(resolution, first, last, position, end - position));
+                position = end;
+            } catch (IndexOutOfBoundsException e) {
+                break;
+            }
+        }
+        fileLength = position;
+        randomAccessFile.setLength(fileLength);
+    }
+
+    private void close() {
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // Nothing to do, every write has been made.
+            }
+            randomAccessFile = null;
+        }
+        blocks.clear();
+        fileLength = 0;
+    }
+
+    private void readBlock(Block block, Points points) throws IOException {
+        if (readBuffer.length < block.length) {
+            readBuffer = new byte[Math.max(block.length, readBuffer.length * 2)];
+        }
+        randomAccessFile.seek(block.offset);
+        randomAccessFile.readFully(readBuffer, 0, block.length);
+        decode(readBuffer, block.length, points);
+    }
+
+    /**
+     * Encodes the points as a block: the resolution, the number of points, the first time, the
+     * span to the last time and the length of the payload, then the payload of the time, received
+     * and transmitted columns and finally a checksum of all of it.
+     */
+    private byte[] encode(Points points) {
+        Encoder payload = new Encoder();
+        for (int i = 1; i < points.count; i++) {
+            payload.writeVarint(points.times[i] - points.times[i - 1]);
+        }
+        writeColumn(payload, points.received, points.count);
+        writeColumn(payload, points.transmitted, points.count);
+
+        Encoder block = new Encoder();
+        block.writeByte(points.resolution);
+        block.writeVarint(points.count);
+        block.writeVarint(points.times[0]);
+        block.writeVarint(points.times[points.count - 1] - points.times[0]);
+        block.writeVarint(payload.position);
+        block.write(payload.bytes, payload.position);
+        int checksum = checksum(block.bytes, 0, block.position);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            block.writeByte(checksum >>> shift);
+        }
+        byte[] encoded = new byte[block.position];
+        System.arraycopy(block.bytes, 0, encoded, 0, encoded.length);
+        return encoded;
+    }
+
+    private static void writeColumn(Encoder encoder, long[] values, int count) {
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            encoder.writeVarint(zigZag(values[i] - previous));
+            previous = values[i];
+        }
+    }
+
+    private static void decode(byte[] bytes, int length, Points points) {
+        Decoder decoder = new Decoder();
+        decoder.reset(bytes, 0, length);
+        points.resolution = decoder.readByte();
+        int count = (int) decoder.readVarint();
+        long time = decoder.readVarint();
+        decoder.readVarint(); // span
+        decoder.readVarint(); // payload length
+        points.ensureCapacity(count);
+        points.count = count;
+        points.times[0] = time;
+        for (int i = 1; i < count; i++) {
+            time += decoder.readVarint();
+            points.times[i] = time;
+        }
+        readColumn(decoder, points.received, count);
+        readColumn(decoder, points.transmitted, count);
+    }
+
+    private static void readColumn(Decoder decoder, long[] values, int count) {
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            previous += unZigZag(decoder.readVarint());
+            values[i] = previous;
+        }
+    }
+
+    private int checksum(byte[] bytes, int from, int to) {
+        crc.reset();
+        crc.update(bytes, from, to - from);
+        return (int) crc.getValue();
+    }
+
+    private static int readInt(byte[] bytes, int position) {
+        return (bytes[position] & 0xff) << 24 | (bytes[position + 1] & 0xff) << 16
+                | (bytes[position + 2] & 0xff) << 8 | (bytes[position + 3] & 0xff);
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Where a block is in the file and what it covers.
+     */
+    private static final class Block {
+        final int resolution;
+        final long first;
+        final long last;
+        final long offset;
+        final int length;
+
+        Block(int resolution, long first, long last, long offset, int length) {
+            this.resolution = resolution;
+            this.first = first;
+            this.last = last;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The points of one block, times in units of the resolution.
+     */
+    private static final class Points {
+        int resolution;
+        long[] times;
+        long[] received;
+        long[] transmitted;
+        int count;
+
+        Points(int resolution, int capacity) {
+            this.resolution = resolution;
+            this.times = new long[capacity];
+            this.received = new long[capacity];
+            this.transmitted = new long[capacity];
+        }
+
+        void add(long time, long bytesReceived, long bytesTransmitted) {
+            times[count] = time;
+            received[count] = bytesReceived;
+            transmitted[count] = bytesTransmitted;
+            count++;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (times.length < capacity) {
+                times = new long[capacity];
+                received = new long[capacity];
+                transmitted = new long[capacity];
+            }
+        }
+    }
+
+    /**
+     * Writes full blocks of points to a new file during compaction.
+     */
+    private final class BlockWriter {
+        final File file;
+        final RandomAccessFile output;
+
+        BlockWriter(File file) throws IOException {
+            this.file = file;
+            file.delete();
+            this.output = new RandomAccessFile(file, "rw");
+        }
+
+        void append(Points points, long time, long bytesReceived, long bytesTransmitted) throws IOException {
+            points.add(time, bytesReceived, bytesTransmitted);
+            if (points.count == points.times.length) {
+                finish(points);
+            }
+        }
+
+        void finish(Points points) throws IOException {
+            if (points.count > 0) {
+                output.write(encode(points));
+                points.count = 0;
+            }
+        }
+
+        void close() throws IOException {
+            output.close();
+        }
+    }
+
+    private static final class Encoder {
+        byte[] bytes = new byte[64];
+        int position;
+
+        void writeByte(int b) {
+            if (position == bytes.length) {
+                byte[] larger = new byte[bytes.length * 2];
+                System.arraycopy(bytes, 0, larger, 0, position);
+                bytes = larger;
+            }
+            bytes[position++] = (byte) b;
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                writeByte((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        void write(byte[] source, int length) {
+            for (int i = 0; i < length; i++) {
+                writeByte(source[i]);
+            }
+        }
+    }
+
+    private static final class Decoder {
+        byte[] bytes;
+        int position;
+        int limit;
+
+        void reset(byte[] bytes, int position, int limit) {
+            this.bytes = bytes;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        int readByte() {
+            if (position >= limit) {
+                throw new IndexOutOfBoundsException();
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IndexOutOfBoundsException();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.willowtreeapps.trafficcop.test;
+
+import com.willowtreeapps.trafficcop.CountingDataUsageStatsProvider;
+import com.willowtreeapps.trafficcop.UsageSnapshot;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class CountingDataUsageStatsProviderTest {
+    @Test
+    public void testCountsInputStream() throws IOException {
+        CountingDataUsageStatsProvider provider = new CountingDataUsageStatsProvider();
+        InputStream in = provider.wrap(new ByteArrayInputStream(new byte[100]));
+
+        in.read();
+        in.read(new byte[50]);
+        in.skip(10);
+        in.read(new byte[100]);
+        assertThat(in.read()).isEqualTo(-1);
+
+        assertThat(provider.getBytesReceived()).isEqualTo(100);
+        assertThat(provider.getBytesTransmitted()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCountsOutputStream() throws IOException {
+        CountingDataUsageStatsProvider provider = new CountingDataUsageStatsProvider();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputStream out = provider.wrap(buffer);
+
+        out.write(1);
+        out.write(new byte[20]);
+        out.write(new byte[20], 5, 10);
+
+        assertThat(buffer.size()).isEqualTo(31);
+        assertThat(provider.getBytesTransmitted()).isEqualTo(31);
+        assertThat(provider.getBytesReceived()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCountsChannel() throws IOException {
+        CountingDataUsageStatsProvider provider = new CountingDataUsageStatsProvider();
+        ReadableByteChannel channel = provider.wrap(Channels.newChannel(new ByteArrayInputStream(new byte[64])));
+        ByteBuffer buffer = ByteBuffer.allocate(48);
+
+        channel.read(buffer);
+        buffer.clear();
+        channel.read(buffer);
+        buffer.clear();
+        assertThat(channel.read(buffer)).isEqualTo(-1);
+
+        UsageSnapshot snapshot = new UsageSnapshot();
+        provider.readSnapshot(snapshot);
+        assertThat(snapshot.getBytesReceived()).isEqualTo(64);
+    }
+
+    @Test
+    public void testConcurrentCountsAreExact() throws InterruptedException {
+        final CountingDataUsageStatsProvider provider = new CountingDataUsageStatsProvider();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    OutputStream out = provider.wrap(new ByteArrayOutputStream());
+                    try {
+                        for (int n = 0; n < 10000; n++) {
+                            out.write(n);
+                            provider.addReceived(3);
+                        }
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(provider.getBytesTransmitted()).isEqualTo(8 * 10000);
+        assertThat(provider.getBytesReceived()).isEqualTo(8 * 10000 * 3);
+    }
+}
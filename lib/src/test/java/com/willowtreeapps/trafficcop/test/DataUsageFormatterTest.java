@@ -0,0 +1,68 @@
+package com.willowtreeapps.trafficcop.test;
+
+import com.willowtreeapps.trafficcop.DataUsage;
+import com.willowtreeapps.trafficcop.DataUsageFormatter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.willowtreeapps.trafficcop.SizeUnit.KILOBYTES;
+import static com.willowtreeapps.trafficcop.SizeUnit.MEGABYTES;
+import static com.willowtreeapps.trafficcop.TimeUnit.HOURS;
+import static com.willowtreeapps.trafficcop.TimeUnit.SECONDS;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class DataUsageFormatterTest {
+    @Test
+    public void testWarningMessage() {
+        StringBuilder out = new StringBuilder();
+        DataUsageFormatter.appendWarningMessage(out, 10 * 1000, 12);
+
+        assertThat(out.toString()).isEqualTo("Warning! You have used 10 kilobytes in 12 seconds.");
+    }
+
+    @Test
+    public void testWarningMessageMillis() {
+        StringBuilder out = new StringBuilder();
+        DataUsageFormatter.appendWarningMessageMillis(out, 2 * 1000 * 1000, 250);
+
+        assertThat(out.toString()).isEqualTo("Warning! You have used 2 megabytes in 250 milliseconds.");
+
+        out.setLength(0);
+        DataUsageFormatter.appendWarningMessageMillis(out, 10 * 1000, 12500);
+
+        assertThat(out.toString()).isEqualTo("Warning! You have used 10 kilobytes in 12 seconds.");
+    }
+
+    @Test
+    public void testZeroTimespan() {
+        StringBuilder out = new StringBuilder();
+        DataUsageFormatter.appendTimespan(out, 0);
+
+        assertThat(out.toString()).isEqualTo("0 seconds");
+    }
+
+    @Test
+    public void testMatchesDataUsage() {
+        DataUsage usage = DataUsage.download(12, MEGABYTES).in(3, HOURS);
+        StringBuilder out = new StringBuilder();
+
+        DataUsageFormatter.appendSize(out, usage.bytes);
+        assertThat(out.toString()).isEqualTo(usage.getHumanReadableSize()).isEqualTo("12 megabytes");
+
+        out.setLength(0);
+        DataUsageFormatter.appendTimespanMillis(out, usage.millis);
+        assertThat(out.toString()).isEqualTo(usage.getHumanReadableTimespan()).isEqualTo("3 hours");
+
+        out.setLength(0);
+        DataUsageFormatter.appendTimespan(out, usage.seconds);
+        assertThat(out.toString()).isEqualTo("3 hours");
+    }
+
+    @Test
+    public void testToString() {
+        assertThat(DataUsage.upload(5, KILOBYTES).forTag(2).in(30, SECONDS).toString()).isEqualTo("UPLOAD 5 kilobytes in 30 seconds for tag 2");
+    }
+}
@@ -0,0 +1,61 @@
+package com.willowtreeapps.trafficcop.test;
+
+import com.willowtreeapps.trafficcop.Histogram;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class HistogramTest {
+    @Test
+    public void testSmallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+
+        assertThat(snapshot.getCount()).isEqualTo(10);
+        assertThat(snapshot.getTotal()).isEqualTo(55);
+        assertThat(snapshot.getValueAtPercentile(50)).isEqualTo(5);
+        assertThat(snapshot.getValueAtPercentile(100)).isEqualTo(10);
+    }
+
+    @Test
+    public void testLargeValuesWithinPrecision() {
+        Histogram histogram = new Histogram();
+        for (long value = 1000; value <= 1000000000000L; value *= 10) {
+            histogram.record(value);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+
+        long median = snapshot.getValueAtPercentile(50);
+        assertThat(median).isGreaterThanOrEqualTo(10000000);
+        assertThat(median).isLessThanOrEqualTo(11250000);
+        assertThat(snapshot.getValueAtPercentile(100)).isEqualTo(1000000000000L);
+        assertThat(snapshot.getMax()).isEqualTo(1000000000000L);
+    }
+
+    @Test
+    public void testExtremes() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+
+        assertThat(snapshot.getValueAtPercentile(0)).isEqualTo(0);
+        assertThat(snapshot.getValueAtPercentile(100)).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testEmpty() {
+        Histogram.Snapshot snapshot = new Histogram().snapshot();
+
+        assertThat(snapshot.getCount()).isEqualTo(0);
+        assertThat(snapshot.getMean()).isEqualTo(0);
+        assertThat(snapshot.getValueAtPercentile(99)).isEqualTo(0);
+    }
+}
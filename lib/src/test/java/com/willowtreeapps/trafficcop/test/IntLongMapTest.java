@@ -0,0 +1,54 @@
+package com.willowtreeapps.trafficcop.test;
+
+import com.willowtreeapps.trafficcop.IntLongMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class IntLongMapTest {
+    @Test
+    public void testPutAndAdd() {
+        IntLongMap map = new IntLongMap();
+        map.put(-1, 5);
+        map.add(-1, 3);
+        map.add(7, 2);
+
+        assertThat(map.get(-1)).isEqualTo(8);
+        assertThat(map.get(7)).isEqualTo(2);
+        assertThat(map.get(8)).isEqualTo(0);
+        assertThat(map.containsKey(8)).isFalse();
+        assertThat(map.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testGrows() {
+        IntLongMap map = new IntLongMap(2);
+        for (int i = 0; i < 1000; i++) {
+            map.add(i * 31, i);
+        }
+
+        assertThat(map.size()).isEqualTo(1000);
+        long sum = 0;
+        for (int slot = 0; slot < map.slots(); slot++) {
+            if (map.isOccupied(slot)) {
+                assertThat(map.valueAt(slot)).isEqualTo(map.keyAt(slot) / 31);
+                sum += map.valueAt(slot);
+            }
+        }
+        assertThat(sum).isEqualTo(999 * 1000 / 2);
+    }
+
+    @Test
+    public void testClear() {
+        IntLongMap map = new IntLongMap();
+        map.put(1, 1);
+        map.clear();
+
+        assertThat(map.size()).isEqualTo(0);
+        assertThat(map.containsKey(1)).isFalse();
+    }
+}
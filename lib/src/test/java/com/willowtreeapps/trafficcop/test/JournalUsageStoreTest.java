@@ -0,0 +1,102 @@
+package com.willowtreeapps.trafficcop.test;
+
+import com.willowtreeapps.trafficcop.JournalUsageStore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class JournalUsageStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLoadNothingSaved() throws IOException {
+        JournalUsageStore store = new JournalUsageStore(new File(folder.getRoot(), "journal"));
+        long[] state = new long[3];
+        assertThat(store.load(state)).isFalse();
+    }
+
+    @Test
+    public void testLoadLastSaved() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        JournalUsageStore store = new JournalUsageStore(file);
+        store.save(new long[]{1, 2, 3});
+        store.save(new long[]{4, 5, 6});
+
+        long[] state = new long[3];
+        assertThat(new JournalUsageStore(file).load(state)).isTrue();
+        assertThat(state).isEqualTo(new long[]{4, 5, 6});
+    }
+
+    @Test
+    public void testLoadDifferentLength() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        new JournalUsageStore(file).save(new long[]{1, 2, 3});
+
+        assertThat(new JournalUsageStore(file).load(new long[4])).isFalse();
+    }
+
+    @Test
+    public void testCompactsWhenFull() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        JournalUsageStore store = new JournalUsageStore(file, 4);
+        for (int i = 0; i < 10; i++) {
+            store.save(new long[]{i, i * 2});
+        }
+
+        long[] state = new long[2];
+        assertThat(new JournalUsageStore(file, 4).load(state)).isTrue();
+        assertThat(state).isEqualTo(new long[]{9, 18});
+    }
+
+    @Test
+    public void testIgnoresTornRecord() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        JournalUsageStore store = new JournalUsageStore(file);
+        store.save(new long[]{1, 2});
+        store.save(new long[]{3, 4});
+
+        // Header is 16 bytes, each record is 32 bytes. Corrupt the state of the second record.
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(16 + 32 + 8);
+        randomAccessFile.writeLong(42);
+        randomAccessFile.close();
+
+        long[] state = new long[2];
+        assertThat(new JournalUsageStore(file).load(state)).isTrue();
+        assertThat(state).isEqualTo(new long[]{1, 2});
+    }
+
+    @Test
+    public void testClear() throws IOException {
+        File file = new File(folder.getRoot(), "journal");
+        JournalUsageStore store = new JournalUsageStore(file);
+        store.save(new long[]{1, 2});
+        store.clear();
+
+        assertThat(file.exists()).isFalse();
+        assertThat(new JournalUsageStore(file).load(new long[2])).isFalse();
+    }
+
+    @Test
+    public void testUnusableFileLoadsNothing() throws IOException {
+        // A directory in place of the file can't be opened.
+        JournalUsageStore store = new JournalUsageStore(folder.newFolder("journal"));
+        long[] state = new long[]{1, 2};
+
+        store.save(state);
+        assertThat(store.load(state)).isFalse();
+    }
+}
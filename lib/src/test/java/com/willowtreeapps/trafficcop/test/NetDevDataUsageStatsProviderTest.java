@@ -0,0 +1,99 @@
+package com.willowtreeapps.trafficcop.test;
+
+import com.willowtreeapps.trafficcop.NetDevDataUsageStatsProvider;
+import com.willowtreeapps.trafficcop.UsageSnapshot;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class NetDevDataUsageStatsProviderTest {
+    private static final String HEADER = "Inter-|   Receive                                                |  Transmit\n"
+            + " face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets errs drop fifo colls carrier compressed\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAllInterfacesButLoopback() throws IOException {
+        File file = write(HEADER
+                + "    lo:    5000      50    0    0    0     0          0         0     5000      50    0    0    0     0       0          0\n"
+                + "rmnet0:    1000      10    0    0    0     0          0         0      200       2    0    0    0     0       0          0\n"
+                + " wlan0:     300       3    0    0    0     0          0         0       40       1    0    0    0     0       0          0\n");
+        NetDevDataUsageStatsProvider provider = new NetDevDataUsageStatsProvider(file);
+
+        assertThat(provider.getBytesReceived()).isEqualTo(1300);
+        assertThat(provider.getBytesTransmitted()).isEqualTo(240);
+        assertThat(provider.getInterfaceCount()).isEqualTo(3);
+        assertThat(provider.getInterfaceName(1)).isEqualTo("rmnet0");
+        assertThat(provider.getInterfaceBytesReceived(1)).isEqualTo(1000);
+        assertThat(provider.getInterfaceBytesTransmitted(2)).isEqualTo(40);
+        provider.close();
+    }
+
+    @Test
+    public void testInterfacePrefixes() throws IOException {
+        File file = write(HEADER
+                + "rmnet0:1000 10 0 0 0 0 0 0 200 2 0 0 0 0 0 0\n"
+                + "rmnet1:  50 1 0 0 0 0 0 0 6 1 0 0 0 0 0 0\n"
+                + " wlan0: 300 3 0 0 0 0 0 0 40 1 0 0 0 0 0 0\n");
+        NetDevDataUsageStatsProvider provider = new NetDevDataUsageStatsProvider(file, NetDevDataUsageStatsProvider.CELLULAR_INTERFACES);
+        UsageSnapshot snapshot = new UsageSnapshot();
+        provider.readSnapshot(snapshot);
+
+        assertThat(snapshot.getBytesReceived()).isEqualTo(1050);
+        assertThat(snapshot.getBytesTransmitted()).isEqualTo(206);
+        provider.close();
+    }
+
+    @Test
+    public void testCounterResetKeepsTotal() throws IOException {
+        File file = write(HEADER + "rmnet0: 1000 10 0 0 0 0 0 0 200 2 0 0 0 0 0 0\n");
+        NetDevDataUsageStatsProvider provider = new NetDevDataUsageStatsProvider(file, "rmnet");
+        assertThat(provider.getBytesReceived()).isEqualTo(1000);
+
+        write(HEADER + "rmnet0: 30 1 0 0 0 0 0 0 5 1 0 0 0 0 0 0\n");
+        assertThat(provider.getBytesReceived()).isEqualTo(1030);
+        assertThat(provider.getBytesTransmitted()).isEqualTo(205);
+        provider.close();
+    }
+
+    @Test
+    public void testManyInterfaces() throws IOException {
+        StringBuilder stats = new StringBuilder(HEADER);
+        for (int i = 0; i < 100; i++) {
+            stats.append("  eth").append(i).append(": 1000 10 0 0 0 0 0 0 2000 20 0 0 0 0 0 0\n");
+        }
+        NetDevDataUsageStatsProvider provider = new NetDevDataUsageStatsProvider(write(stats.toString()));
+
+        assertThat(provider.getBytesReceived()).isEqualTo(100000);
+        assertThat(provider.getInterfaceCount()).isEqualTo(100);
+        assertThat(provider.getInterfaceName(99)).isEqualTo("eth99");
+        provider.close();
+    }
+
+    @Test
+    public void testMissingFile() {
+        NetDevDataUsageStatsProvider provider = new NetDevDataUsageStatsProvider(new File(folder.getRoot(), "missing"));
+
+        assertThat(provider.getBytesReceived()).isEqualTo(0);
+        assertThat(provider.getInterfaceCount()).isEqualTo(0);
+    }
+
+    private File write(String stats) throws IOException {
+        File file = new File(folder.getRoot(), "dev");
+        FileWriter writer = new FileWriter(file);
+        writer.write(stats);
+        writer.close();
+        return file;
+    }
+}
@@ -0,0 +1,128 @@
+package com.willowtreeapps.trafficcop.test;
+
+import com.willowtreeapps.trafficcop.DataUsage;
+import com.willowtreeapps.trafficcop.DataUsageAlertListener;
+import com.willowtreeapps.trafficcop.Threshold;
+import com.willowtreeapps.trafficcop.TrafficCop;
+import com.willowtreeapps.trafficcop.test.helpers.ImmediateExecutor;
+import com.willowtreeapps.trafficcop.test.helpers.TestDataUsageStatsProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.willowtreeapps.trafficcop.SizeUnit.MEGABYTES;
+import static com.willowtreeapps.trafficcop.TimeUnit.MILLISECONDS;
+import static com.willowtreeapps.trafficcop.TimeUnit.MINUTE;
+import static com.willowtreeapps.trafficcop.TimeUnit.MINUTES;
+import static com.willowtreeapps.trafficcop.TimeUnit.SECOND;
+import static com.willowtreeapps.trafficcop.TimeUnit.SECONDS;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class PeakRateTest {
+    private TestDataUsageStatsProvider testProvider;
+    private DataUsageAlertListener mockAdapter;
+    private Threshold threshold;
+    private TrafficCop trafficCop;
+
+    @Before
+    public void setUp() {
+        testProvider = new TestDataUsageStatsProvider();
+        mockAdapter = mock(DataUsageAlertListener.class);
+        threshold = Threshold.peak(1, MEGABYTES).per(2, SECONDS);
+        trafficCop = new TrafficCop.Builder()
+                .warningThresholds(DataUsage.Type.DOWNLOAD, threshold)
+                .alert(mockAdapter)
+                .peakRateWindow(1, MINUTE)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("peak", Robolectric.application);
+    }
+
+    @After
+    public void tearDown() {
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testUsageIsSpreadOverMeasurement() {
+        measure(1, 5);
+        measure(10, 10);
+
+        assertThat(trafficCop.getPeakRate(DataUsage.Type.DOWNLOAD, 1, MINUTE)).isEqualTo(MEGABYTES.of(5));
+        assertThat(trafficCop.getPeakRate(DataUsage.Type.UPLOAD, 1, MINUTE)).isEqualTo(0);
+
+        testProvider.incrementTime(20, SECONDS);
+
+        assertThat(trafficCop.getPeakRate(DataUsage.Type.DOWNLOAD, 1, MINUTE)).isEqualTo(MEGABYTES.of(5));
+        assertThat(trafficCop.getPeakRate(DataUsage.Type.DOWNLOAD, 30, SECONDS)).isEqualTo(MEGABYTES.of(1));
+        assertThat(trafficCop.getPeakRate(DataUsage.Type.DOWNLOAD, 10, SECONDS)).isEqualTo(0);
+    }
+
+    @Test
+    public void testPeakOutlastsLowerUsage() {
+        measure(1, 5);
+        for (int i = 0; i < 10; i++) {
+            measure(1, 1);
+        }
+
+        assertThat(trafficCop.getPeakRate(DataUsage.Type.TOTAL, 1, MINUTE)).isEqualTo(MEGABYTES.of(5));
+        assertThat(trafficCop.getPeakRate(DataUsage.Type.TOTAL, 5, SECONDS)).isEqualTo(MEGABYTES.of(1));
+
+        testProvider.incrementTime(1, MINUTE);
+
+        assertThat(trafficCop.getPeakRate(DataUsage.Type.TOTAL, 1, MINUTE)).isEqualTo(0);
+    }
+
+    @Test
+    public void testPeakThresholdAlertsOncePerBurst() {
+        measure(1, 2);
+        measure(1, 2);
+        measure(1, 2);
+        measure(30, 0);
+        measure(1, 3);
+
+        verify(mockAdapter, times(2)).alertThreshold(eq(threshold), any(DataUsage.class));
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.download(3, MEGABYTES).in(1, SECOND));
+    }
+
+    @Test
+    public void testTimesBeforeClockOrigin() {
+        testProvider.incrementTime(-10500, MILLISECONDS);
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(2, MEGABYTES);
+        trafficCop.stopMeasuring();
+
+        // Half a second in each of two intervals.
+        assertThat(trafficCop.getPeakRate(DataUsage.Type.DOWNLOAD, 1, MINUTE)).isEqualTo(MEGABYTES.of(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowLongerThanKeptFails() {
+        trafficCop.getPeakRate(DataUsage.Type.DOWNLOAD, 2, MINUTES);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPeakThresholdForTagFails() {
+        Threshold.peak(1, MEGABYTES).forTag(1);
+    }
+
+    private void measure(int seconds, int megabytes) {
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(seconds, SECONDS);
+        testProvider.incrementReceived(megabytes, MEGABYTES);
+        trafficCop.stopMeasuring();
+    }
+}
@@ -0,0 +1,111 @@
+package com.willowtreeapps.trafficcop.test;
+
+import com.willowtreeapps.trafficcop.IntLongMap;
+import com.willowtreeapps.trafficcop.QtaguidDataUsageStatsProvider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class QtaguidDataUsageStatsProviderTest {
+    private static final String STATS = "idx iface acct_tag_hex uid_tag_int cnt_set rx_bytes rx_packets tx_bytes tx_packets\n"
+            + "2 wlan0 0x0 10050 0 1000 10 2000 20\n"
+            + "3 wlan0 0x100002742 10050 0 300 3 400 4\n"
+            + "4 wlan0 0x100002742 10050 1 30 1 40 1\n"
+            + "5 rmnet0 0x100002742 10050 0 5 1 6 1\n"
+            + "6 wlan0 0x200002742 10050 0 7 1 8 1\n"
+            + "7 wlan0 0x100002743 10051 0 900 9 900 9\n"
+            + "8 wlan0 0xffffff0000002742 10050 0 11 1 12 1\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTaggedBytes() throws IOException {
+        File file = write(STATS);
+
+        QtaguidDataUsageStatsProvider provider = new QtaguidDataUsageStatsProvider(10050, file);
+        IntLongMap received = new IntLongMap();
+        IntLongMap transmitted = new IntLongMap();
+        provider.getTaggedBytes(received, transmitted);
+
+        assertThat(received.size()).isEqualTo(3);
+        assertThat(received.get(1)).isEqualTo(335);
+        assertThat(transmitted.get(1)).isEqualTo(446);
+        assertThat(received.get(2)).isEqualTo(7);
+        assertThat(transmitted.get(2)).isEqualTo(8);
+        assertThat(received.get(0xffffff00)).isEqualTo(11);
+        assertThat(received.containsKey(0)).isFalse();
+    }
+
+    @Test
+    public void testSkipsMalformedLines() throws IOException {
+        File file = write("idx iface acct_tag_hex uid_tag_int cnt_set rx_bytes rx_packets tx_bytes tx_packets\n"
+                + "3 wlan0 0x100002742 10050\n"
+                + "4 wlan0 0x100002742 10050 0 30 1 40 1\n"
+                + "5 wlan0 garbage 10050 0 5 1 6 1\n"
+                + "6 wlan0 0x100002742 10050 0 7");
+
+        QtaguidDataUsageStatsProvider provider = new QtaguidDataUsageStatsProvider(10050, file);
+        IntLongMap received = new IntLongMap();
+        IntLongMap transmitted = new IntLongMap();
+        provider.getTaggedBytes(received, transmitted);
+
+        assertThat(received.size()).isEqualTo(1);
+        assertThat(received.get(1)).isEqualTo(30);
+        assertThat(transmitted.get(1)).isEqualTo(40);
+    }
+
+    @Test
+    public void testReadsFileLargerThanBuffer() throws IOException {
+        StringBuilder stats = new StringBuilder("idx iface acct_tag_hex uid_tag_int cnt_set rx_bytes rx_packets tx_bytes tx_packets\n");
+        for (int i = 0; i < 1000; i++) {
+            stats.append(i).append(" wlan0 0x100002742 10050 0 1 1 2 1\n");
+        }
+        File file = write(stats.toString());
+
+        QtaguidDataUsageStatsProvider provider = new QtaguidDataUsageStatsProvider(10050, file);
+        IntLongMap received = new IntLongMap();
+        IntLongMap transmitted = new IntLongMap();
+        provider.getTaggedBytes(received, transmitted);
+        provider.getTaggedBytes(received, transmitted);
+        provider.close();
+
+        assertThat(received.get(1)).isEqualTo(1000);
+        assertThat(transmitted.get(1)).isEqualTo(2000);
+    }
+
+    @Test
+    public void testTaggedUsageAvailable() throws IOException {
+        assertThat(new QtaguidDataUsageStatsProvider(10050, write(STATS)).isTaggedUsageAvailable()).isTrue();
+        assertThat(new QtaguidDataUsageStatsProvider(10050, new File(folder.getRoot(), "missing")).isTaggedUsageAvailable()).isFalse();
+    }
+
+    @Test
+    public void testMissingFile() {
+        QtaguidDataUsageStatsProvider provider = new QtaguidDataUsageStatsProvider(10050, new File(folder.getRoot(), "missing"));
+        IntLongMap received = new IntLongMap();
+        IntLongMap transmitted = new IntLongMap();
+        received.put(1, 1);
+        provider.getTaggedBytes(received, transmitted);
+
+        assertThat(received.size()).isEqualTo(0);
+    }
+
+    private File write(String stats) throws IOException {
+        File file = folder.newFile();
+        FileWriter writer = new FileWriter(file);
+        writer.write(stats);
+        writer.close();
+        return file;
+    }
+}
@@ -0,0 +1,154 @@
+package com.willowtreeapps.trafficcop.test;
+
+import com.willowtreeapps.trafficcop.DataUsage;
+import com.willowtreeapps.trafficcop.Quota;
+import com.willowtreeapps.trafficcop.Threshold;
+import com.willowtreeapps.trafficcop.TrafficCop;
+import com.willowtreeapps.trafficcop.test.helpers.ImmediateExecutor;
+import com.willowtreeapps.trafficcop.test.helpers.TestDataUsageStatsProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.willowtreeapps.trafficcop.SizeUnit.BYTES;
+import static com.willowtreeapps.trafficcop.SizeUnit.KILOBYTES;
+import static com.willowtreeapps.trafficcop.TimeUnit.MINUTE;
+import static com.willowtreeapps.trafficcop.TimeUnit.SECOND;
+import static com.willowtreeapps.trafficcop.TimeUnit.SECONDS;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class QuotaTest {
+    private TestDataUsageStatsProvider testProvider;
+    private TrafficCop trafficCop;
+
+    @Before
+    public void setUp() {
+        testProvider = new TestDataUsageStatsProvider();
+        trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(Threshold.of(100, KILOBYTES).per(10, SECONDS))
+                .warningThresholds(DataUsage.Type.DOWNLOAD, Threshold.of(1000, KILOBYTES).per(MINUTE))
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("quota", Robolectric.application);
+    }
+
+    @After
+    public void tearDown() {
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testRefillsAtStrictestRate() {
+        Quota quota = trafficCop.getQuota(DataUsage.Type.DOWNLOAD);
+
+        assertThat(quota.tryAcquire(100 * 1000)).isTrue();
+        assertThat(quota.tryAcquire(1)).isFalse();
+
+        testProvider.incrementTime(1, SECOND);
+
+        assertThat(quota.available()).isEqualTo(10 * 1000);
+        assertThat(quota.tryAcquire(10 * 1000)).isTrue();
+        assertThat(quota.tryAcquire(1)).isFalse();
+    }
+
+    @Test
+    public void testChargesUnreservedUsage() {
+        Quota quota = trafficCop.getQuota(DataUsage.Type.DOWNLOAD);
+        quota.tryAcquire(20 * 1000);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementReceived(50, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        assertThat(quota.available()).isEqualTo(50 * 1000);
+    }
+
+    @Test
+    public void testRefundsUnusedReservations() {
+        Quota quota = trafficCop.getQuota(DataUsage.Type.DOWNLOAD);
+        quota.tryAcquire(20 * 1000);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementReceived(5, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        assertThat(quota.available()).isEqualTo(95 * 1000);
+    }
+
+    @Test
+    public void testUnlimitedWithoutThreshold() {
+        Quota quota = trafficCop.getQuota(DataUsage.Type.UPLOAD);
+
+        assertThat(quota.isUnlimited()).isTrue();
+        assertThat(quota.tryAcquire(Long.MAX_VALUE)).isTrue();
+    }
+
+    @Test
+    public void testAcquireWaitsForRefill() throws InterruptedException {
+        final Quota quota = trafficCop.getQuota(DataUsage.Type.DOWNLOAD);
+        quota.tryAcquire(100 * 1000);
+        final AtomicBoolean acquired = new AtomicBoolean();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    acquired.set(quota.acquire(10 * 1000, Long.MAX_VALUE));
+                } catch (InterruptedException e) {
+                    // Leaves acquired false.
+                }
+            }
+        };
+        thread.start();
+
+        testProvider.incrementTime(1, SECOND);
+        thread.join(5000);
+
+        assertThat(acquired.get()).isTrue();
+        assertThat(quota.available()).isEqualTo(0);
+    }
+
+    @Test
+    public void testAcquireTimesOut() throws InterruptedException {
+        Quota quota = trafficCop.getQuota(DataUsage.Type.DOWNLOAD);
+        quota.tryAcquire(100 * 1000);
+
+        assertThat(quota.acquire(1, 50)).isFalse();
+        assertThat(quota.available()).isEqualTo(0);
+    }
+
+    @Test
+    public void testConcurrentAcquireNeverOverspends() throws InterruptedException {
+        final Quota quota = trafficCop.getQuota(DataUsage.Type.DOWNLOAD);
+        final AtomicInteger acquired = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 5000; n++) {
+                        if (quota.tryAcquire(BYTES.of(10))) {
+                            acquired.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(acquired.get()).isEqualTo(100 * 1000 / 10);
+        assertThat(quota.available()).isEqualTo(0);
+    }
+}
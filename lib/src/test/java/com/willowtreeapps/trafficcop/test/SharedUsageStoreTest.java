@@ -0,0 +1,155 @@
+package com.willowtreeapps.trafficcop.test;
+
+import com.willowtreeapps.trafficcop.SharedUsageStore;
+import com.willowtreeapps.trafficcop.UsageStore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class SharedUsageStoreTest {
+    private static final UsageStore.Merger ADD = new UsageStore.Merger() {
+        @Override
+        public void merge(long[] saved, long[] state) {
+            for (int i = 0; i < saved.length; i++) {
+                saved[i] += state[i];
+            }
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLoadNothingSaved() {
+        SharedUsageStore store = new SharedUsageStore(new File(folder.getRoot(), "shared"));
+        long[] state = new long[3];
+
+        assertThat(store.load(state)).isFalse();
+        assertThat(state).isEqualTo(new long[3]);
+    }
+
+    @Test
+    public void testMergeCombinesWithEachStore() {
+        File file = new File(folder.getRoot(), "shared");
+        SharedUsageStore sync = new SharedUsageStore(file);
+        SharedUsageStore media = new SharedUsageStore(file);
+        long[] syncState = new long[]{100, 1};
+        long[] mediaState = new long[]{50, 2};
+
+        sync.merge(syncState, ADD);
+        media.merge(mediaState, ADD);
+
+        assertThat(syncState).isEqualTo(new long[]{100, 1});
+        assertThat(mediaState).isEqualTo(new long[]{150, 3});
+        long[] state = new long[2];
+        assertThat(new SharedUsageStore(file).load(state)).isTrue();
+        assertThat(state).isEqualTo(new long[]{150, 3});
+    }
+
+    @Test
+    public void testMergeStartsFromZeros() {
+        File file = new File(folder.getRoot(), "shared");
+        final long[][] merged = new long[1][];
+        new SharedUsageStore(file).merge(new long[]{7, 8}, new UsageStore.Merger() {
+            @Override
+            public void merge(long[] saved, long[] state) {
+                merged[0] = saved.clone();
+            }
+        });
+
+        assertThat(merged[0]).isEqualTo(new long[2]);
+    }
+
+    @Test
+    public void testSaveReplacesState() {
+        File file = new File(folder.getRoot(), "shared");
+        new SharedUsageStore(file).save(new long[]{100});
+        new SharedUsageStore(file).save(new long[]{20});
+
+        long[] state = new long[1];
+        new SharedUsageStore(file).load(state);
+        assertThat(state).isEqualTo(new long[]{20});
+    }
+
+    @Test
+    public void testIgnoresTornCopy() throws IOException {
+        File file = new File(folder.getRoot(), "shared");
+        SharedUsageStore store = new SharedUsageStore(file);
+        store.save(new long[]{1, 2});
+        store.save(new long[]{3, 4});
+
+        // Header is 16 bytes, each copy is 24 bytes, the second save went to the first copy.
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(16 + 8);
+        randomAccessFile.writeLong(42);
+        randomAccessFile.close();
+
+        long[] state = new long[2];
+        new SharedUsageStore(file).load(state);
+        assertThat(state).isEqualTo(new long[]{1, 2});
+    }
+
+    @Test
+    public void testConcurrentMergesAreAllCounted() throws InterruptedException {
+        final File file = new File(folder.getRoot(), "shared");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    SharedUsageStore store = new SharedUsageStore(file);
+                    for (int n = 0; n < 100; n++) {
+                        store.merge(new long[]{1}, ADD);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long[] state = new long[1];
+        new SharedUsageStore(file).load(state);
+        assertThat(state[0]).isEqualTo(400);
+    }
+
+    @Test
+    public void testIsShared() {
+        assertThat(new SharedUsageStore(new File(folder.getRoot(), "shared")).isShared()).isTrue();
+    }
+
+    @Test
+    public void testClear() {
+        File file = new File(folder.getRoot(), "shared");
+        new SharedUsageStore(file).save(new long[]{1, 2});
+        new SharedUsageStore(file).clear();
+
+        long[] state = new long[2];
+        assertThat(new SharedUsageStore(file).load(state)).isFalse();
+        assertThat(state).isEqualTo(new long[2]);
+    }
+
+    @Test
+    public void testUnusableFileLoadsNothing() throws IOException {
+        // A directory in place of the file can't be opened.
+        SharedUsageStore store = new SharedUsageStore(folder.newFolder("shared"));
+        long[] state = new long[]{1, 2};
+
+        store.merge(state, ADD);
+        assertThat(state).isEqualTo(new long[]{1, 2});
+        assertThat(store.load(state)).isFalse();
+    }
+}
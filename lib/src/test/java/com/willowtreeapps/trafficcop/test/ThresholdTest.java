@@ -9,8 +9,11 @@ import org.junit.runners.JUnit4;
 
 import static com.willowtreeapps.trafficcop.SizeUnit.GIGABYTES;
 import static com.willowtreeapps.trafficcop.SizeUnit.KILOBYTES;
+import static com.willowtreeapps.trafficcop.SizeUnit.MEGABYTES;
+import static com.willowtreeapps.trafficcop.TimeUnit.MILLISECONDS;
 import static com.willowtreeapps.trafficcop.TimeUnit.SECOND;
 import static com.willowtreeapps.trafficcop.TimeUnit.SECONDS;
+import static com.willowtreeapps.trafficcop.TimeUnit.WEEKS;
 import static org.fest.assertions.api.Assertions.assertThat;
 
 /**
@@ -66,4 +69,19 @@ public class ThresholdTest {
         DataUsage usage = DataUsage.download(401, KILOBYTES).in(4, SECONDS);
         assertThat(threshold.hasReached(usage)).isTrue();
     }
+
+    @Test
+    public void testSubSecondBurst() {
+        Threshold threshold = Threshold.of(2, MEGABYTES).per(250, MILLISECONDS);
+        assertThat(threshold.hasReached(DataUsage.download(2, MEGABYTES).in(900, MILLISECONDS))).isFalse();
+        assertThat(threshold.hasReached(DataUsage.download(8, MEGABYTES).in(900, MILLISECONDS))).isTrue();
+        assertThat(threshold.hasReached(DataUsage.download(2, MEGABYTES).in(100, MILLISECONDS))).isTrue();
+    }
+
+    @Test
+    public void testLongSpansDontOverflow() {
+        Threshold threshold = Threshold.of(1000, GIGABYTES).per(52, WEEKS);
+        assertThat(threshold.hasReached(DataUsage.download(2000, GIGABYTES).in(104, WEEKS))).isTrue();
+        assertThat(threshold.hasReached(DataUsage.download(1999, GIGABYTES).in(104, WEEKS))).isFalse();
+    }
 }
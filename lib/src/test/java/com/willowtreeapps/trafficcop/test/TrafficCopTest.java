@@ -1,9 +1,27 @@
 package com.willowtreeapps.trafficcop.test;
 
+import android.app.Activity;
+import android.content.ComponentCallbacks2;
+
 import com.willowtreeapps.trafficcop.DataUsage;
 import com.willowtreeapps.trafficcop.DataUsageAlertListener;
+import com.willowtreeapps.trafficcop.DataUsageProjectionListener;
+import com.willowtreeapps.trafficcop.DataUsageStatsProvider;
+import com.willowtreeapps.trafficcop.Histogram;
+import com.willowtreeapps.trafficcop.IntLongMap;
+import com.willowtreeapps.trafficcop.Metrics;
+import com.willowtreeapps.trafficcop.PrimitiveDataUsageAlertListener;
+import com.willowtreeapps.trafficcop.QtaguidDataUsageStatsProvider;
+import com.willowtreeapps.trafficcop.SharedUsageStore;
+import com.willowtreeapps.trafficcop.SnapshotDataUsageStatsProvider;
 import com.willowtreeapps.trafficcop.TrafficCop;
 import com.willowtreeapps.trafficcop.Threshold;
+import com.willowtreeapps.trafficcop.TrafficTag;
+import com.willowtreeapps.trafficcop.UsageSnapshot;
+import com.willowtreeapps.trafficcop.UsageStore;
+import com.willowtreeapps.trafficcop.UsageTimeSeries;
+import com.willowtreeapps.trafficcop.test.helpers.ImmediateExecutor;
+import com.willowtreeapps.trafficcop.test.helpers.QueuedExecutor;
 import com.willowtreeapps.trafficcop.test.helpers.TestDataUsageStatsProvider;
 
 import org.junit.Test;
@@ -11,13 +29,33 @@ import org.junit.runner.RunWith;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
+import org.robolectric.util.ActivityController;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.willowtreeapps.trafficcop.SizeUnit.BYTE;
 import static com.willowtreeapps.trafficcop.SizeUnit.KILOBYTES;
+import static com.willowtreeapps.trafficcop.SizeUnit.MEGABYTES;
+import static com.willowtreeapps.trafficcop.TimeUnit.HOUR;
+import static com.willowtreeapps.trafficcop.TimeUnit.MILLISECONDS;
+import static com.willowtreeapps.trafficcop.TimeUnit.MINUTE;
+import static com.willowtreeapps.trafficcop.TimeUnit.MINUTES;
 import static com.willowtreeapps.trafficcop.TimeUnit.SECOND;
 import static com.willowtreeapps.trafficcop.TimeUnit.SECONDS;
+import static com.willowtreeapps.trafficcop.TimeUnit.WEEK;
+import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -35,6 +73,7 @@ public class TrafficCopTest {
                 .downloadWarningThreshold(Threshold.of(100, KILOBYTES).per(SECOND))
                 .alert(mockAdapter)
                 .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
                 .create("test", Robolectric.application);
 
         trafficCop.startMeasuring();
@@ -54,6 +93,7 @@ public class TrafficCopTest {
                 .downloadWarningThreshold(threshold)
                 .alert(mockAdapter)
                 .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
                 .create("test", Robolectric.application);
 
         trafficCop.startMeasuring();
@@ -73,6 +113,7 @@ public class TrafficCopTest {
                 .downloadWarningThreshold(Threshold.of(100, KILOBYTES).per(2, SECONDS))
                 .alert(mockAdapter)
                 .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
                 .create("test", Robolectric.application);
 
         trafficCop.startMeasuring();
@@ -97,6 +138,7 @@ public class TrafficCopTest {
                 .downloadWarningThreshold(threshold)
                 .alert(mockAdapter)
                 .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
                 .create("test", Robolectric.application);
 
         trafficCop.startMeasuring();
@@ -121,6 +163,7 @@ public class TrafficCopTest {
                 .downloadWarningThreshold(threshold)
                 .alert(mockAdapter)
                 .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
                 .create("test", Robolectric.application);
 
         trafficCop.startMeasuring();
@@ -135,9 +178,982 @@ public class TrafficCopTest {
         trafficCop.destroy();
     }
 
+    @Test
+    public void testRollingOnlyCountsRecentUsage() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.rolling(100, KILOBYTES).per(2, SECONDS);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("test", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(60, KILOBYTES);
+        trafficCop.stopMeasuring();
+        testProvider.incrementTime(5, SECONDS);
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(60, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter, never()).alertThreshold(any(Threshold.class), any(DataUsage.class));
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(50, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.download(110, KILOBYTES).in(2, SECONDS));
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testRollingSpreadsLongMeasurement() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.rolling(100, KILOBYTES).per(5, MINUTES);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("rolling-spread", Robolectric.application);
+
+        // Only half of it was in the last 5 minutes.
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(10, MINUTES);
+        testProvider.incrementReceived(150, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter, never()).alertThreshold(any(Threshold.class), any(DataUsage.class));
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(30, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter).alertThreshold(eq(threshold), any(DataUsage.class));
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testRollingCarriesOverRestart() {
+        File file = new File(Robolectric.application.getFilesDir(), "rolling-restart");
+        long now = System.currentTimeMillis();
+        UsageTimeSeries previous = new UsageTimeSeries(file);
+        previous.add(now - 30 * 60 * 1000, KILOBYTES.of(60), 0);
+        previous.add(now - 20 * 60 * 1000, 0, 0);
+        previous.flush();
+
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.rolling(100, KILOBYTES).per(HOUR);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .timeSeries(new UsageTimeSeries(file))
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("rolling-restart", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(50, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.download(110, KILOBYTES).in(1, HOUR));
+        trafficCop.destroy();
+        file.delete();
+    }
+
+    @Test
+    public void testSamplingAlertsWhileMeasuring() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .dataUsageStatsProvider(testProvider)
+                .samplingInterval(1, SECOND)
+                .create("test", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(100, KILOBYTES);
+
+        verify(mockAdapter, timeout(3000)).alertThreshold(threshold, DataUsage.download(100, KILOBYTES).in(1, SECOND));
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testAlertsOffCallingThreadByDefault() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .dataUsageStatsProvider(testProvider)
+                .create("test", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(100, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter, timeout(1000)).alertThreshold(threshold, DataUsage.download(100, KILOBYTES).in(1, SECOND));
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testAlertOnListenerExecutor() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        Executor mockExecutor = mock(Executor.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(Threshold.of(100, KILOBYTES).per(SECOND))
+                .alert(mockExecutor, mockAdapter)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("test", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(100, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockExecutor).execute(any(Runnable.class));
+        verify(mockAdapter, never()).alertThreshold(any(Threshold.class), any(DataUsage.class));
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testMultipleThresholdsTrackedSeparately() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold downloadThreshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        Threshold totalThreshold = Threshold.of(150, KILOBYTES).per(SECOND);
+        Threshold rollingThreshold = Threshold.rolling(300, KILOBYTES).per(10, SECONDS);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .warningThresholds(DataUsage.Type.DOWNLOAD, downloadThreshold)
+                .warningThresholds(DataUsage.Type.TOTAL, totalThreshold, rollingThreshold)
+                .alert(mockAdapter)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("test", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(80, KILOBYTES);
+        testProvider.incrementTransmitted(80, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter).alertThreshold(totalThreshold, DataUsage.total(160, KILOBYTES).in(1, SECOND));
+        verify(mockAdapter, never()).alertThreshold(eq(downloadThreshold), any(DataUsage.class));
+        verify(mockAdapter, never()).alertThreshold(eq(rollingThreshold), any(DataUsage.class));
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(120, KILOBYTES);
+        testProvider.incrementTransmitted(50, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter).alertThreshold(downloadThreshold, DataUsage.download(200, KILOBYTES).in(2, SECONDS));
+        verify(mockAdapter).alertThreshold(rollingThreshold, DataUsage.total(330, KILOBYTES).in(10, SECONDS));
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testThresholdForTag() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).forTag(1).per(SECOND);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("test", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(500, KILOBYTES);
+        testProvider.incrementReceived(2, 500, KILOBYTES);
+        testProvider.incrementReceived(1, 50, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter, never()).alertThreshold(any(Threshold.class), any(DataUsage.class));
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(1, 150, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.download(200, KILOBYTES).forTag(1).in(2, SECONDS));
+        trafficCop.destroy();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testThresholdForTagWithoutTaggedProviderFails() {
+        new TrafficCop.Builder()
+                .downloadWarningThreshold(Threshold.of(100, KILOBYTES).forTag(1).per(SECOND))
+                .dataUsageStatsProvider(mock(DataUsageStatsProvider.class))
+                .create("test", Robolectric.application);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testThresholdForTagWithoutTaggedUsageFails() {
+        new TrafficCop.Builder()
+                .downloadWarningThreshold(Threshold.of(100, KILOBYTES).forTag(1).per(SECOND))
+                .dataUsageStatsProvider(new QtaguidDataUsageStatsProvider(10050, new File("missing")))
+                .create("test", Robolectric.application);
+    }
+
+    @Test
+    public void testTaggedBytesReadOnExecutor() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = spy(new TestDataUsageStatsProvider());
+        QueuedExecutor executor = new QueuedExecutor();
+        Threshold threshold = Threshold.of(100, KILOBYTES).forTag(1).per(SECOND);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .dataUsageStatsProvider(testProvider)
+                .executor(executor)
+                .create("tagged-executor", Robolectric.application);
+        executor.runAll();
+
+        testProvider.incrementReceived(1, 50, KILOBYTES);
+        trafficCop.startMeasuring();
+
+        verify(testProvider, never()).getTaggedBytes(any(IntLongMap.class), any(IntLongMap.class));
+
+        executor.runAll();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(1, 150, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(testProvider).getTaggedBytes(any(IntLongMap.class), any(IntLongMap.class));
+
+        executor.runAll();
+
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.download(150, KILOBYTES).forTag(1).in(1, SECOND));
+        trafficCop.destroy();
+        executor.runAll();
+    }
+
+    @Test
+    public void testThrowingListenerDoesNotStopEvaluation() {
+        DataUsageAlertListener throwingAdapter = mock(DataUsageAlertListener.class);
+        doThrow(new RuntimeException("listener failed"))
+                .when(throwingAdapter).alertThreshold(any(Threshold.class), any(DataUsage.class));
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold downloadThreshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        Threshold uploadThreshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(downloadThreshold)
+                .uploadWarningThreshold(uploadThreshold)
+                .alert(throwingAdapter)
+                .alert(mockAdapter)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("throwing-listener", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(200, KILOBYTES);
+        testProvider.incrementTransmitted(200, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter).alertThreshold(downloadThreshold, DataUsage.download(200, KILOBYTES).in(1, SECOND));
+        verify(mockAdapter).alertThreshold(uploadThreshold, DataUsage.upload(200, KILOBYTES).in(1, SECOND));
+
+        // Both were reset, so a little more usage doesn't alert again.
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(1, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter, times(2)).alertThreshold(any(Threshold.class), any(DataUsage.class));
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testEvaluationContinuesAfterError() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        doThrow(new AssertionError("listener failed"))
+                .doNothing()
+                .when(mockAdapter).alertThreshold(any(Threshold.class), any(DataUsage.class));
+        QueuedExecutor executor = new QueuedExecutor();
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .usageStore(mock(UsageStore.class))
+                .dataUsageStatsProvider(testProvider)
+                .executor(executor)
+                .create("error", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(100, KILOBYTES);
+        trafficCop.stopMeasuring();
+        try {
+            executor.runAll();
+        } catch (AssertionError e) {
+            // Expected.
+        }
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(100, KILOBYTES);
+        trafficCop.stopMeasuring();
+        executor.runAll();
+
+        verify(mockAdapter, times(2)).alertThreshold(threshold, DataUsage.download(100, KILOBYTES).in(1, SECOND));
+        trafficCop.destroy();
+        executor.runAll();
+    }
+
+    @Test
+    public void testRecreateAfterDestroyKeepsNewUsage() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        DataUsageAlertListener blockingAdapter = new DataUsageAlertListener() {
+            @Override
+            public void alertThreshold(Threshold threshold, DataUsage dataUsage) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        File journal = new File(Robolectric.application.getFilesDir(), TrafficCop.class.getCanonicalName() + "_journal_recreate");
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(blockingAdapter)
+                .flushInterval(0, SECONDS)
+                .dataUsageStatsProvider(testProvider)
+                .create("recreate", Robolectric.application);
+
+        // Saved, so the second TrafficCop has a journal to open.
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(50, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        // Holds the first TrafficCop's executor, so its clear is still queued when the second loads.
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(200, KILOBYTES);
+        trafficCop.stopMeasuring();
+        trafficCop.destroy();
+
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TrafficCop recreated = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .flushInterval(0, SECONDS)
+                .dataUsageStatsProvider(testProvider)
+                .create("recreate", Robolectric.application);
+        Thread.sleep(100);
+        release.countDown();
+        Thread.sleep(100);
+
+        recreated.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(200, KILOBYTES);
+        recreated.stopMeasuring();
+
+        verify(mockAdapter, timeout(1000)).alertThreshold(threshold, DataUsage.download(200, KILOBYTES).in(1, SECOND));
+        // Saved after the alert is delivered.
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!journal.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(journal.exists()).isTrue();
+        recreated.destroy();
+    }
+
+    @Test
+    public void testOverlappingSessionsCountedOnce() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(3, SECONDS);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("test", Robolectric.application);
+
+        TrafficCop.Session first = trafficCop.beginSession();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(50, KILOBYTES);
+        TrafficCop.Session second = trafficCop.beginSession();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(50, KILOBYTES);
+        first.close();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(50, KILOBYTES);
+
+        verify(mockAdapter, never()).alertThreshold(any(Threshold.class), any(DataUsage.class));
+
+        second.close();
+
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.download(150, KILOBYTES).in(3, SECONDS));
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testClosedSessionsAreReused() {
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .dataUsageStatsProvider(new TestDataUsageStatsProvider())
+                .executor(new ImmediateExecutor())
+                .create("test", Robolectric.application);
+
+        TrafficCop.Session session = trafficCop.beginSession();
+        session.close();
+
+        assertThat(trafficCop.beginSession()).isSameAs(session);
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testConcurrentMeasuringCountsEveryByteOnce() throws InterruptedException {
+        final TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        final AtomicLong alertedBytes = new AtomicLong();
+        final TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(Threshold.of(1, BYTE).per(WEEK))
+                .alert(new DataUsageAlertListener() {
+                    @Override
+                    public void alertThreshold(Threshold threshold, DataUsage dataUsage) {
+                        alertedBytes.addAndGet(dataUsage.bytes);
+                    }
+                })
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("test", Robolectric.application);
+
+        final int iterations = 1000;
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < iterations; n++) {
+                        trafficCop.startMeasuring();
+                        testProvider.incrementReceived(1, BYTE);
+                        trafficCop.stopMeasuring();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(alertedBytes.get()).isEqualTo(threads.length * iterations);
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testAlertPrimitiveListener() {
+        PrimitiveDataUsageAlertListener mockAdapter = mock(PrimitiveDataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("test", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(100, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.Type.DOWNLOAD, 100000, 1000, TrafficTag.NONE);
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testEarlyAlertWhenProjectedToReachThreshold() {
+        DataUsageProjectionListener mockListener = mock(DataUsageProjectionListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(10, SECONDS);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .earlyAlert(5, SECONDS, mockListener)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("test", Robolectric.application);
+
+        // 90 kilobytes left at 10 kilobytes a second.
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(10, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockListener, never()).thresholdApproaching(any(Threshold.class), any(DataUsage.Type.class), anyInt(), anyLong());
+
+        // The burst raises the estimated rate to about 13.8 kilobytes a second, with 40 left.
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(50, KILOBYTES);
+        trafficCop.stopMeasuring();
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(1, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockListener).thresholdApproaching(eq(threshold), eq(DataUsage.Type.DOWNLOAD), eq(3), anyLong());
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testReadsSnapshotWhenSupported() {
+        SnapshotDataUsageStatsProvider provider = mock(SnapshotDataUsageStatsProvider.class);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .dataUsageStatsProvider(provider)
+                .executor(new ImmediateExecutor())
+                .create("test", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        trafficCop.stopMeasuring();
+
+        verify(provider, times(2)).readSnapshot(any(UsageSnapshot.class));
+        verify(provider, never()).getBytesReceived();
+        verify(provider, never()).getBytesTransmitted();
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testMetrics() {
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("metrics", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(2, SECONDS);
+        testProvider.incrementReceived(400, KILOBYTES);
+        testProvider.incrementTransmitted(1, KILOBYTES);
+        trafficCop.stopMeasuring();
+        trafficCop.flush();
+
+        Metrics metrics = trafficCop.getMetrics();
+        assertThat(metrics.getBytesReceived().snapshot().getTotal()).isEqualTo(400000);
+        assertThat(metrics.getTransmitRate().snapshot().getMax()).isEqualTo(500);
+        assertThat(metrics.getStopMeasuringNanos().snapshot().getCount()).isEqualTo(1);
+        assertThat(metrics.getPersistNanos().snapshot().getCount()).isEqualTo(1);
+        assertThat(metrics.getThresholds()).containsOnly(threshold);
+        assertThat(metrics.getAlertCount(threshold)).isEqualTo(1);
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testUsageHistoryIsNotResetByAlerts() {
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(Threshold.of(100, KILOBYTES).per(SECOND))
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("history", Robolectric.application);
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < 2; i++) {
+            trafficCop.startMeasuring();
+            testProvider.incrementTime(1, SECOND);
+            testProvider.incrementReceived(100, KILOBYTES);
+            trafficCop.stopMeasuring();
+        }
+
+        DataUsage usage = trafficCop.getUsage(start - 1000, System.currentTimeMillis() + 1000, DataUsage.Type.DOWNLOAD);
+        assertThat(usage.bytes).isEqualTo(200000);
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testUsageHistorySurvivesRestart() {
+        File file = new File(Robolectric.application.getFilesDir(), "history-restart");
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .timeSeries(new UsageTimeSeries(file))
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("history-restart", Robolectric.application);
+        // The usage is read back by the minute.
+        long start = System.currentTimeMillis() - 60 * 1000;
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(200, KILOBYTES);
+        trafficCop.stopMeasuring();
+        trafficCop.destroy();
+
+        TrafficCop restarted = new TrafficCop.Builder()
+                .timeSeries(new UsageTimeSeries(file))
+                .dataUsageStatsProvider(new TestDataUsageStatsProvider())
+                .executor(new ImmediateExecutor())
+                .create("history-restart", Robolectric.application);
+
+        DataUsage usage = restarted.getUsage(start, System.currentTimeMillis() + 1000, DataUsage.Type.DOWNLOAD);
+        assertThat(usage.bytes).isEqualTo(200000);
+        restarted.destroy();
+        file.delete();
+    }
+
+    @Test
+    public void testSavesAfterFlushInterval() {
+        UsageStore store = mock(UsageStore.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(Threshold.of(100, KILOBYTES).per(SECOND))
+                .flushInterval(1, SECOND)
+                .usageStore(store)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("flush", Robolectric.application);
+
+        for (int i = 0; i < 5; i++) {
+            trafficCop.startMeasuring();
+            testProvider.incrementReceived(1, KILOBYTES);
+            trafficCop.stopMeasuring();
+        }
+        verify(store, never()).save(any(long[].class));
+
+        // Flushed off the main thread, without the main looper running.
+        verify(store, timeout(5000)).save(any(long[].class));
+        verify(store, times(1)).save(any(long[].class));
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testSavesWhenAppGoesToBackground() {
+        UsageStore store = mock(UsageStore.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(Threshold.of(100, KILOBYTES).per(SECOND))
+                .flushInterval(1, MINUTE)
+                .usageStore(store)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .register("background", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementReceived(1, KILOBYTES);
+        trafficCop.stopMeasuring();
+        Robolectric.application.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+
+        verify(store, times(1)).save(any(long[].class));
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testMeasuresWhileAnyActivityIsStarted() {
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .usageStore(mock(UsageStore.class))
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .register("foreground", Robolectric.application);
+
+        ActivityController<Activity> first = Robolectric.buildActivity(Activity.class).create().start().resume();
+        testProvider.incrementReceived(1, KILOBYTES);
+        first.pause();
+        ActivityController<Activity> second = Robolectric.buildActivity(Activity.class).create().start().resume();
+        first.stop();
+        testProvider.incrementReceived(1, KILOBYTES);
+
+        assertThat(trafficCop.getMetrics().getBytesReceived().snapshot().getCount()).isEqualTo(0);
+
+        second.pause().stop();
+
+        Histogram.Snapshot measurements = trafficCop.getMetrics().getBytesReceived().snapshot();
+        assertThat(measurements.getCount()).isEqualTo(1);
+        assertThat(measurements.getTotal()).isEqualTo(2 * 1000);
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testMeasuresInBackground() {
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .measureInBackground(true)
+                .usageStore(mock(UsageStore.class))
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .register("background-sync", Robolectric.application);
+
+        testProvider.incrementReceived(1, KILOBYTES);
+        Robolectric.buildActivity(Activity.class).create().start().resume().pause().stop();
+
+        assertThat(trafficCop.getMetrics().getBytesReceived().snapshot().getTotal()).isEqualTo(1000);
+
+        testProvider.incrementReceived(1, KILOBYTES);
+        trafficCop.unregister();
+
+        Histogram.Snapshot measurements = trafficCop.getMetrics().getBytesReceived().snapshot();
+        assertThat(measurements.getCount()).isEqualTo(2);
+        assertThat(measurements.getTotal()).isEqualTo(2 * 1000);
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testSampleRecordsWholeMilliseconds() {
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .measureInBackground(true)
+                .usageStore(mock(UsageStore.class))
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .register("sample-millis", Robolectric.application);
+
+        testProvider.incrementNanoTime(1500000);
+        testProvider.incrementReceived(1, KILOBYTES);
+        Robolectric.buildActivity(Activity.class).create().start().resume().pause().stop();
+
+        // The half millisecond left over is measured with the rest.
+        testProvider.incrementNanoTime(500000);
+        testProvider.incrementReceived(1, KILOBYTES);
+        trafficCop.unregister();
+
+        Histogram.Snapshot rates = trafficCop.getMetrics().getReceiveRate().snapshot();
+        assertThat(rates.getCount()).isEqualTo(2);
+        assertThat(rates.getTotal()).isEqualTo(2 * 1000 * 1000);
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testSubSecondThreshold() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        PrimitiveDataUsageAlertListener mockPrimitiveListener = mock(PrimitiveDataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(2, MEGABYTES).per(250, MILLISECONDS);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .alert(mockPrimitiveListener)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("burst", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(900, MILLISECONDS);
+        testProvider.incrementReceived(8, MEGABYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.download(8, MEGABYTES).in(900, MILLISECONDS));
+        verify(mockPrimitiveListener).alertThreshold(threshold, DataUsage.Type.DOWNLOAD, MEGABYTES.of(8), 900, TrafficTag.NONE);
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testEarlyAlertWithSubSecondLeadTime() {
+        DataUsageProjectionListener mockListener = mock(DataUsageProjectionListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(10, SECONDS);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .earlyAlert(500, MILLISECONDS, mockListener)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("early-millis", Robolectric.application);
+
+        // A second away at 50 kilobytes a second.
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(50, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockListener, never()).thresholdApproaching(any(Threshold.class), any(DataUsage.Type.class), anyInt(), anyLong());
+
+        // Less than a tenth of a second away.
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(46, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockListener).thresholdApproaching(eq(threshold), eq(DataUsage.Type.DOWNLOAD), eq(1), anyLong());
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testAddAndRemoveListeners() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        PrimitiveDataUsageAlertListener mockPrimitiveListener = mock(PrimitiveDataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("listeners", Robolectric.application);
+
+        trafficCop.addListener(mockAdapter);
+        trafficCop.addListener(mockPrimitiveListener);
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(100, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        assertThat(trafficCop.removeListener(mockAdapter)).isTrue();
+        assertThat(trafficCop.removeListener(mockAdapter)).isFalse();
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(100, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.download(100, KILOBYTES).in(1, SECOND));
+        verify(mockPrimitiveListener, times(2)).alertThreshold(threshold, DataUsage.Type.DOWNLOAD, 100 * 1000, 1000, TrafficTag.NONE);
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testAlertCooldownCoalescesAlerts() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .alertCooldown(10, SECONDS)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("cooldown", Robolectric.application);
+
+        for (int i = 0; i < 11; i++) {
+            trafficCop.startMeasuring();
+            testProvider.incrementTime(1, SECOND);
+            testProvider.incrementReceived(100, KILOBYTES);
+            trafficCop.stopMeasuring();
+        }
+
+        verify(mockAdapter, times(2)).alertThreshold(any(Threshold.class), any(DataUsage.class));
+        assertThat(trafficCop.getMetrics().getAlertCount(threshold)).isEqualTo(11);
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testCooldownIsPerRegistration() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .uploadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .alertCooldown(10, SECONDS)
+                .dataUsageStatsProvider(testProvider)
+                .executor(new ImmediateExecutor())
+                .create("cooldown-types", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(100, KILOBYTES);
+        testProvider.incrementTransmitted(100, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.download(100, KILOBYTES).in(1, SECOND));
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.upload(100, KILOBYTES).in(1, SECOND));
+        assertThat(trafficCop.getMetrics().getThresholds()).hasSize(1);
+        assertThat(trafficCop.getMetrics().getAlertCount(threshold)).isEqualTo(2);
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testLoadsStateOffCallingThread() {
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        UsageStore store = mock(UsageStore.class);
+        QueuedExecutor executor = new QueuedExecutor();
+        TestDataUsageStatsProvider testProvider = new TestDataUsageStatsProvider();
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        TrafficCop trafficCop = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .usageStore(store)
+                .dataUsageStatsProvider(testProvider)
+                .executor(executor)
+                .create("lazy", Robolectric.application);
+
+        trafficCop.startMeasuring();
+        testProvider.incrementTime(1, SECOND);
+        testProvider.incrementReceived(100, KILOBYTES);
+        trafficCop.stopMeasuring();
+
+        verify(store, never()).load(any(long[].class));
+
+        executor.runAll();
+
+        verify(store, times(1)).load(any(long[].class));
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.download(100, KILOBYTES).in(1, SECOND));
+        trafficCop.destroy();
+    }
+
+    @Test
+    public void testSharedUsageCountsTimeOnce() {
+        File file = new File(Robolectric.application.getFilesDir(), "shared");
+        DataUsageAlertListener mockAdapter = mock(DataUsageAlertListener.class);
+        Threshold threshold = Threshold.of(100, KILOBYTES).per(SECOND);
+        TestDataUsageStatsProvider syncProvider = new TestDataUsageStatsProvider();
+        TestDataUsageStatsProvider mediaProvider = new TestDataUsageStatsProvider();
+        TrafficCop sync = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .flushInterval(0, SECONDS)
+                .usageStore(new SharedUsageStore(file))
+                .dataUsageStatsProvider(syncProvider)
+                .executor(new ImmediateExecutor())
+                .create("shared-sync", Robolectric.application);
+        TrafficCop media = new TrafficCop.Builder()
+                .downloadWarningThreshold(threshold)
+                .alert(mockAdapter)
+                .flushInterval(0, SECONDS)
+                .usageStore(new SharedUsageStore(file))
+                .dataUsageStatsProvider(mediaProvider)
+                .executor(new ImmediateExecutor())
+                .create("shared-media", Robolectric.application);
+
+        // Both measure the same second, 120 kB in it between them.
+        sync.startMeasuring();
+        media.startMeasuring();
+        syncProvider.incrementTime(1, SECOND);
+        syncProvider.incrementReceived(60, KILOBYTES);
+        mediaProvider.incrementTime(1, SECOND);
+        mediaProvider.incrementReceived(60, KILOBYTES);
+        sync.stopMeasuring();
+        media.stopMeasuring();
+        // Destroying the sync process's TrafficCop keeps its usage for the media process.
+        sync.destroy();
+
+        verify(mockAdapter, never()).alertThreshold(any(Threshold.class), any(DataUsage.class));
+
+        media.startMeasuring();
+        mediaProvider.incrementTime(100, MILLISECONDS);
+        media.stopMeasuring();
+
+        verify(mockAdapter).alertThreshold(threshold, DataUsage.download(120, KILOBYTES).in(1100, MILLISECONDS));
+        media.destroy();
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testCreatingMultipleWithSameIdFails() {
-        new TrafficCop.Builder().create("test", Robolectric.application);
-        new TrafficCop.Builder().create("test", Robolectric.application);
+        // Its own id, the first one is never destroyed.
+        new TrafficCop.Builder().create("duplicate", Robolectric.application);
+        new TrafficCop.Builder().create("duplicate", Robolectric.application);
     }
 }
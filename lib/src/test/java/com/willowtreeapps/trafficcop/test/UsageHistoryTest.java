@@ -0,0 +1,88 @@
+package com.willowtreeapps.trafficcop.test;
+
+import com.willowtreeapps.trafficcop.DataUsage;
+import com.willowtreeapps.trafficcop.UsageHistory;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(JUnit4.class)
+public class UsageHistoryTest {
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    // Some midnight, UTC.
+    private static final long START = 20000 * DAY;
+
+    @Test
+    public void testRecentUsageBySecond() {
+        UsageHistory history = new UsageHistory();
+        history.add(START, 100, 10);
+        history.add(START + 1500, 200, 20);
+        history.add(START + 3 * SECOND, 400, 40);
+
+        assertThat(history.getBytesReceived(START, START + 10 * SECOND)).isEqualTo(700);
+        assertThat(history.getBytesReceived(START + SECOND, START + 3 * SECOND)).isEqualTo(200);
+        assertThat(history.getBytesTransmitted(START + 500, START + 3001)).isEqualTo(60);
+        assertThat(history.getUsage(START, START + 10 * SECOND, DataUsage.Type.TOTAL).bytes).isEqualTo(770);
+    }
+
+    @Test
+    public void testYesterday() {
+        UsageHistory history = new UsageHistory();
+        // A megabyte every minute for two days.
+        for (long t = START; t < START + 2 * DAY; t += MINUTE) {
+            history.add(t, 1000000, 0);
+        }
+
+        DataUsage yesterday = history.getUsage(START, START + DAY, DataUsage.Type.DOWNLOAD);
+        assertThat(yesterday.bytes).isEqualTo(24 * 60 * 1000000L);
+        assertThat(yesterday.seconds).isEqualTo(24 * 60 * 60);
+        assertThat(history.getBytesReceived(START + DAY, START + 2 * DAY)).isEqualTo(24 * 60 * 1000000L);
+        // Still kept by the minute.
+        assertThat(history.getBytesReceived(START + 2 * DAY - 90 * MINUTE, START + 2 * DAY)).isEqualTo(90 * 1000000L);
+    }
+
+    @Test
+    public void testOldUsageIsKeptAtCoarserResolution() {
+        UsageHistory history = new UsageHistory();
+        for (long t = START + 30 * MINUTE; t < START + 5 * DAY; t += HOUR) {
+            history.add(t, 1, 0);
+        }
+
+        assertThat(history.getBytesReceived(START, START + DAY)).isEqualTo(24);
+        // Only whole days are kept that long, so a range within one counts from the next day.
+        assertThat(history.getBytesReceived(START + HOUR, START + DAY)).isEqualTo(0);
+        assertThat(history.getBytesReceived(START + HOUR, START + 2 * DAY)).isEqualTo(24);
+        assertThat(history.getBytesReceived(0, Long.MAX_VALUE)).isEqualTo(5 * 24);
+    }
+
+    @Test
+    public void testForgetsUsageOlderThanRetention() {
+        UsageHistory history = new UsageHistory();
+        for (int day = 0; day < 100; day++) {
+            history.add(START + day * DAY + 12 * HOUR, 1, 0);
+        }
+
+        // The last three days are still on their way up to the day level, which keeps 90.
+        assertThat(history.getBytesReceived(0, Long.MAX_VALUE)).isEqualTo(93);
+    }
+
+    @Test
+    public void testTimeGoingBackwards() {
+        UsageHistory history = new UsageHistory();
+        history.add(START + MINUTE, 5, 0);
+        history.add(START, 7, 0);
+
+        assertThat(history.getBytesReceived(START + MINUTE, START + 2 * MINUTE)).isEqualTo(12);
+    }
+
+    @Test
+    public void testEmpty() {
+        assertThat(new UsageHistory().getBytesReceived(0, Long.MAX_VALUE)).isEqualTo(0);
+    }
+}
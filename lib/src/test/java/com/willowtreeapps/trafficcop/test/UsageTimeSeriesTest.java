@@ -0,0 +1,154 @@
+package com.willowtreeapps.trafficcop.test;
+
+import com.willowtreeapps.trafficcop.DataUsage;
+import com.willowtreeapps.trafficcop.UsageTimeSeries;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class UsageTimeSeriesTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final long START = 20000 * DAY;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadsBackWhatWasAdded() {
+        File file = new File(folder.getRoot(), "series");
+        UsageTimeSeries series = new UsageTimeSeries(file);
+        for (long t = START; t < START + 3 * HOUR; t += 30 * 1000) {
+            series.add(t, 1000, 10);
+        }
+        // Not written yet, but still read.
+        assertThat(series.getUsage(START, START + 3 * HOUR, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(360 * 1000);
+        series.flush();
+
+        UsageTimeSeries reopened = new UsageTimeSeries(file);
+        assertThat(reopened.getUsage(START, START + 3 * HOUR, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(360 * 1000);
+        assertThat(reopened.getUsage(START + HOUR, START + 2 * HOUR, DataUsage.Type.UPLOAD).bytes).isEqualTo(120 * 10);
+    }
+
+    @Test
+    public void testWeekOfMinutesIsSmall() {
+        File file = new File(folder.getRoot(), "series");
+        UsageTimeSeries series = new UsageTimeSeries(file);
+        Random random = new Random(42);
+        long total = 0;
+        for (long t = START; t < START + 7 * DAY; t += MINUTE) {
+            long received = 50000 + random.nextInt(20000);
+            series.add(t, received, received / 20);
+            total += received;
+        }
+        series.add(START + 7 * DAY, 0, 0);
+        series.flush();
+
+        assertThat(file.length()).isLessThan(80 * 1024);
+        assertThat(new UsageTimeSeries(file).getUsage(0, Long.MAX_VALUE, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(total);
+    }
+
+    @Test
+    public void testCompactionMergesOldMinutesIntoHours() {
+        File file = new File(folder.getRoot(), "series");
+        UsageTimeSeries series = new UsageTimeSeries(file, 1, 30);
+        for (long t = START; t < START + 3 * DAY; t += MINUTE) {
+            series.add(t, 100, 1);
+        }
+        series.flush();
+        series.compact(START + 3 * DAY);
+
+        final long[] durations = new long[2];
+        series.read(START, START + DAY, new UsageTimeSeries.Visitor() {
+            @Override
+            public void visit(long timeMillis, long durationMillis, long bytesReceived, long bytesTransmitted) {
+                durations[durationMillis == HOUR ? 1 : 0]++;
+            }
+        });
+        assertThat(durations).isEqualTo(new long[]{0, 24});
+        assertThat(series.getUsage(0, Long.MAX_VALUE, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(3 * 24 * 60 * 100);
+        assertThat(series.getUsage(START + 2 * DAY + MINUTE, START + 2 * DAY + 3 * MINUTE, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(200);
+    }
+
+    @Test
+    public void testCompactionDropsExpiredHours() {
+        File file = new File(folder.getRoot(), "series");
+        UsageTimeSeries series = new UsageTimeSeries(file, 1, 2);
+        for (long t = START; t < START + 4 * DAY; t += HOUR) {
+            series.add(t, 100, 0);
+        }
+        series.flush();
+        series.compact(START + 4 * DAY);
+
+        // The third day as hours and the fourth as minutes.
+        assertThat(series.getUsage(0, Long.MAX_VALUE, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(2 * 24 * 100);
+    }
+
+    @Test
+    public void testDropsTornBlock() throws IOException {
+        File file = new File(folder.getRoot(), "series");
+        UsageTimeSeries series = new UsageTimeSeries(file);
+        series.add(START, 100, 0);
+        series.flush();
+        long length = file.length();
+        series.add(START + MINUTE, 200, 0);
+        series.flush();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(file.length() - 1);
+        randomAccessFile.close();
+
+        UsageTimeSeries reopened = new UsageTimeSeries(file);
+        assertThat(reopened.getUsage(0, Long.MAX_VALUE, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(100);
+        assertThat(file.length()).isEqualTo(length);
+    }
+
+    @Test
+    public void testFlushWritesUnfinishedMinuteOnce() {
+        File file = new File(folder.getRoot(), "series");
+        UsageTimeSeries series = new UsageTimeSeries(file);
+        series.add(START, 100, 0);
+        series.flush();
+        series.add(START + 10 * 1000, 50, 0);
+
+        assertThat(new UsageTimeSeries(file).getUsage(0, Long.MAX_VALUE, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(100);
+        assertThat(series.getUsage(0, Long.MAX_VALUE, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(150);
+
+        series.add(START + MINUTE, 25, 0);
+        series.flush();
+
+        assertThat(new UsageTimeSeries(file).getUsage(0, Long.MAX_VALUE, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(175);
+        assertThat(series.getUsage(0, Long.MAX_VALUE, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(175);
+    }
+
+    @Test
+    public void testUnwritableFileKeepsCounting() {
+        // A directory in place of the file can't be opened.
+        File file = folder.newFolder("series");
+        UsageTimeSeries series = new UsageTimeSeries(file);
+        for (long t = START; t < START + 3 * HOUR; t += MINUTE) {
+            series.add(t, 100, 0);
+        }
+        series.compact(START + 3 * HOUR);
+        series.add(START + 3 * HOUR, 100, 0);
+        series.flush();
+
+        assertThat(series.getUsage(0, Long.MAX_VALUE, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(0);
+        series.add(START + 3 * HOUR + MINUTE, 100, 0);
+        assertThat(series.getUsage(0, Long.MAX_VALUE, DataUsage.Type.DOWNLOAD).bytes).isEqualTo(100);
+    }
+}
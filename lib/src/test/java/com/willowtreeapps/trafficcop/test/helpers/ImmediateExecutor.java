@@ -0,0 +1,13 @@
+package com.willowtreeapps.trafficcop.test.helpers;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the calling thread so tests can check the results right away.
+ */
+public class ImmediateExecutor implements Executor {
+    @Override
+    public void execute(Runnable command) {
+        command.run();
+    }
+}
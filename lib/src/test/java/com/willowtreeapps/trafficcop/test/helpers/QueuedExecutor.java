@@ -0,0 +1,25 @@
+package com.willowtreeapps.trafficcop.test.helpers;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Holds tasks until {@link #runAll()} is called, so tests can check what happens before the
+ * background work has run.
+ */
+public class QueuedExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+        tasks.add(command);
+    }
+
+    public void runAll() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
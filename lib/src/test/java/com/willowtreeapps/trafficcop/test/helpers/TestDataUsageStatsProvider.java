@@ -1,41 +1,80 @@
 package com.willowtreeapps.trafficcop.test.helpers;
 
-import com.willowtreeapps.trafficcop.DataUsageStatsProvider;
+import com.willowtreeapps.trafficcop.IntLongMap;
 import com.willowtreeapps.trafficcop.SizeUnit;
+import com.willowtreeapps.trafficcop.TaggedDataUsageStatsProvider;
 import com.willowtreeapps.trafficcop.TimeUnit;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Created by evantatarka on 10/8/14.
  */
-public class TestDataUsageStatsProvider implements DataUsageStatsProvider {
-    private long nanoTime = 0;
-    private long bytesTransmitted = 0;
-    private long bytesReceived = 0;
+public class TestDataUsageStatsProvider implements TaggedDataUsageStatsProvider {
+    private final AtomicLong nanoTime = new AtomicLong();
+    private final AtomicLong bytesTransmitted = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final IntLongMap taggedBytesTransmitted = new IntLongMap();
+    private final IntLongMap taggedBytesReceived = new IntLongMap();
 
     @Override
     public long getNanoTime() {
-        return nanoTime;
+        return nanoTime.get();
     }
 
     @Override
     public long getBytesTransmitted() {
-        return bytesTransmitted;
+        return bytesTransmitted.get();
     }
 
     @Override
     public long getBytesReceived() {
-        return bytesReceived;
+        return bytesReceived.get();
+    }
+
+    @Override
+    public void getTaggedBytes(IntLongMap bytesReceived, IntLongMap bytesTransmitted) {
+        copy(taggedBytesReceived, bytesReceived);
+        copy(taggedBytesTransmitted, bytesTransmitted);
+    }
+
+    @Override
+    public boolean isTaggedUsageAvailable() {
+        return true;
     }
 
     public void incrementTime(int amount, TimeUnit unit) {
-        nanoTime += (unit.of(amount) * 1000000000);
+        nanoTime.addAndGet(unit.toMillis(amount) * 1000000L);
+    }
+
+    public void incrementNanoTime(long nanos) {
+        nanoTime.addAndGet(nanos);
     }
 
     public void incrementTransmitted(int amount, SizeUnit unit) {
-        bytesTransmitted += unit.of(amount);
+        bytesTransmitted.addAndGet(unit.of(amount));
     }
 
     public void incrementReceived(int amount, SizeUnit unit) {
-        bytesReceived += unit.of(amount);
+        bytesReceived.addAndGet(unit.of(amount));
+    }
+
+    public void incrementTransmitted(int tag, int amount, SizeUnit unit) {
+        incrementTransmitted(amount, unit);
+        taggedBytesTransmitted.add(tag, unit.of(amount));
+    }
+
+    public void incrementReceived(int tag, int amount, SizeUnit unit) {
+        incrementReceived(amount, unit);
+        taggedBytesReceived.add(tag, unit.of(amount));
+    }
+
+    private static void copy(IntLongMap from, IntLongMap to) {
+        to.clear();
+        for (int slot = 0; slot < from.slots(); slot++) {
+            if (from.isOccupied(slot)) {
+                to.put(from.keyAt(slot), from.valueAt(slot));
+            }
+        }
     }
 }